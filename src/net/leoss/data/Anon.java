@@ -19,11 +19,24 @@ package net.leoss.data;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.math3.util.Pair;
 import org.deidentifier.arx.ARXAnonymizer;
 import org.deidentifier.arx.ARXConfiguration;
+import org.deidentifier.arx.ARXListener;
 import org.deidentifier.arx.ARXResult;
 import org.deidentifier.arx.AttributeType;
 import org.deidentifier.arx.AttributeType.Hierarchy;
@@ -64,8 +77,119 @@ public class Anon {
             this.model = model;
             this.attributes = attributes;
         }
+
+        /**
+         * Returns a copy, as ARX keeps state in privacy models
+         * @return
+         */
+        private PrivacyModel copy() {
+            return new PrivacyModel(model.clone(), attributes);
+        }
+
+        /**
+         * Returns a description of the model
+         * @return
+         */
+        private String getDescription() {
+            return attributes[0].getFirst() + ", " + model.toString();
+        }
     }
 
+    /**
+     * Result of an anonymization run, which only suppresses records. Consists of the
+     * equivalence classes that have been suppressed, and the output of ARX, if the
+     * result has not been taken from the cache.
+     * @author Fabian Prasser
+     */
+    private static class Result {
+
+        /** Input */
+        private final Data        input;
+        /** Columns defining the classes */
+        private final int[]       columns;
+        /** Suppressed classes */
+        private final Set<String> suppressed;
+        /** Output, may be null */
+        private final DataHandle  output;
+
+        /**
+         * Creates a new instance
+         * @param input
+         * @param columns
+         * @param suppressed
+         * @param output Output, null if the result has been taken from the cache
+         */
+        private Result(Data input, int[] columns, Set<String> suppressed, DataHandle output) {
+            this.input = input;
+            this.columns = columns;
+            this.suppressed = suppressed;
+            this.output = output;
+        }
+
+        /**
+         * Returns the records that have not been suppressed
+         * @return
+         */
+        private Data getData() {
+            if (output != null) {
+                return Util.getData(output);
+            }
+            Iterator<String[]> iter = input.getHandle().iterator();
+            List<String[]> rows = new ArrayList<>();
+            rows.add(iter.next());
+            while (iter.hasNext()) {
+                String[] row = iter.next();
+                if (!suppressed.contains(getKey(row, columns))) {
+                    rows.add(row);
+                }
+            }
+            return Data.create(rows);
+        }
+
+        /**
+         * Returns the number of suppressed records
+         * @return
+         */
+        private int getNumberOfSuppressedRecords() {
+            if (output != null) {
+                return output.getStatistics().getEquivalenceClassStatistics().getNumberOfSuppressedRecords();
+            }
+            int result = 0;
+            for (int count : getSuppressedClasses().values()) {
+                result += count;
+            }
+            return result;
+        }
+
+        /**
+         * Returns the number of suppressed records per class
+         * @return
+         */
+        private Map<String, Integer> getSuppressedClasses() {
+            Map<String, Integer> result = new HashMap<>();
+            if (suppressed.isEmpty()) {
+                return result;
+            }
+            Iterator<String[]> iter = input.getHandle().iterator();
+            iter.next();
+            while (iter.hasNext()) {
+                String key = getKey(iter.next(), columns);
+                if (suppressed.contains(key)) {
+                    Integer count = result.get(key);
+                    result.put(key, count == null ? 1 : count + 1);
+                }
+            }
+            return result;
+        }
+    }
+
+    /** Parameter of the first stage */
+    private static final int       FIRST_STAGE_K     = 10;
+    /** Parameter of the second stage */
+    public static final int        SECOND_STAGE_K    = 11;
+    /** Parameter of the second stage */
+    public static final double     SECOND_STAGE_T    = 0.5d;
+
     /** Transformation rule */
     private static final Hierarchy RULE_AGE          = getAgeHierarchy();
     /** Transformation rule */
@@ -86,49 +210,49 @@ public class Anon {
     /**
      * Implements the anonymization process laid out in the ethics proposal
      * @param data
+     * @param progress
+     * @throws IOException 
+     * @throws RollbackRequiredException 
+     */
+    public static Data anonymizeFirstStage(Data data, Progress progress) throws IOException, RollbackRequiredException {
+        return anonymizeFirstStage(data, progress, "First stage");
+    }
+
+    /**
+     * Implements the anonymization process laid out in the ethics proposal
+     * @param data
+     * @param progress
+     * @param phase Name of the phase in the report
      * @throws IOException 
      * @throws RollbackRequiredException 
      */
-    public static Data anonymizeFirstStage(Data data) throws IOException, RollbackRequiredException {
+    public static Data anonymizeFirstStage(Data data, Progress progress, String phase) throws IOException, RollbackRequiredException {
         
         // Report
-        Report.registerInput("First stage", data.getHandle());
+        Report.registerInput(phase, data.getHandle());
 
         // Variables
-        String[] variables = new String[] {
-                                           IO.FIELD_AGE,
-                                           IO.FIELD_GENDER,
-                                           IO.FIELD_DIAGNOSIS_MONTH,
-                                           IO.FIELD_DIAGNOSIS_YEAR,
-                                           IO.FIELD_PHASE_UNCOMPLICATED,
-                                           IO.FIELD_PHASE_COMPLICATED,
-                                           IO.FIELD_PHASE_CRITICAL,
-                                           IO.FIELD_PHASE_RECOVERY,
-                                           IO.FIELD_PHASE_COMPLICATED_VASSOPRESSORS,
-                                           IO.FIELD_PHASE_CRITICIAL_VASSOPRESSORS,
-                                           IO.FIELD_PHASE_CRITICIAL_VENTILATION,
-                                           IO.FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION,
-                                           IO.FIELD_PHASE_COMPLICATED_SUPERINFECTION,
-                                           IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION,
-                                           IO.FIELD_PHASE_RECOVERY_SYMPTOMS,
-                                           IO.FIELD_LAST_KNOWN_STATUS                       
-        };
+        String[] variables = getFirstStageVariables();
         
         // Effects
         List<Pair<String, Integer>> effects = new ArrayList<>();
         
+        // Progress
+        progress.begin(phase, variables.length * 2);
+        
         // For each variable
         for (String variable : variables) {
             
             // Anonymize
-            DataHandle handle = anonymize(data, effects, new PrivacyModel(new KAnonymity(10), new Pair<>(variable, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE)));
+            Result result = anonymize(data, effects, null, progress, new PrivacyModel(new KAnonymity(FIRST_STAGE_K), new Pair<>(variable, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE)));
                         
             // Convert
-            data = Util.getData(handle);
+            data = result.getData();
         }
 
         // Report
-        Report.registerOutput("First stage", data.getHandle(), effects);
+        progress.end();
+        Report.registerOutput(phase, data.getHandle(), effects);
         
         // Done
         return data;
@@ -137,10 +261,14 @@ public class Anon {
     /**
      * Generalizes the quasi-identifiers
      * @param data
+     * @param progress
      * @return
      * @throws IOException 
      */
-    public static Data anonymizeGeneralize(Data data) throws IOException {
+    public static Data anonymizeGeneralize(Data data, Progress progress) throws IOException {
+
+        // Progress
+        progress.begin("Generalization", 1);
 
         // Define all as insensitive
         for (int i = 0; i < data.getHandle().getNumColumns(); i++) {
@@ -172,15 +300,25 @@ public class Anon {
         config.setQualityModel(Metric.createLossMetric());
         
         // Anonymize
+        Events.Anonymization event = new Events.Anonymization();
+        event.begin();
         ARXAnonymizer anonymizer = new ARXAnonymizer();
-        ARXResult result = anonymizer.anonymize(data, config);
+        anonymizer.setListener(getListener(progress));
+        ARXResult result = Scheduler.run(getMemory(data), progress, () -> anonymizer.anonymize(data, config));
         DataHandle handle = result.getOutput();
+        event.model = "Generalization";
+        event.records = handle.getNumRows();
+        event.commit();
         
         // Sanity check
         if (handle.getStatistics().getEquivalenceClassStatistics().getNumberOfSuppressedRecords() != 0) {
             throw new IllegalStateException("Internal error! This must not happen.");
         }
         
+        // Share of generalized cells
+        progress.end();
+        Report.registerGeneralization(data.getHandle(), handle);
+
         // Done
         return Util.getData(handle);
     }
@@ -188,23 +326,356 @@ public class Anon {
     /**
      * Implements an additional quantitative anonymization process for maximal performance
      * @param data
+     * @param progress
      * @throws IOException 
      * @throws RollbackRequiredException 
      */
-    public static Data anonymizeSecondStage(Data data) throws IOException, RollbackRequiredException {
+    public static Data anonymizeSecondStage(Data data, Progress progress) throws IOException, RollbackRequiredException {
+        return anonymizeSecondStage(data, progress, "Second stage", SECOND_STAGE_K, SECOND_STAGE_T, getSensitiveAttributes());
+    }
+
+    /**
+     * Implements the second stage with the given parameters
+     * @param data
+     * @param progress
+     * @param phase Phase in the report
+     * @param k
+     * @param t
+     * @param sensitive Sensitive attributes protected with t-closeness
+     * @throws IOException 
+     * @throws RollbackRequiredException 
+     */
+    public static Data anonymizeSecondStage(Data data, Progress progress, String phase, int k, double t, String... sensitive) throws IOException, RollbackRequiredException {
 
         // Report
-        Report.registerInput("Second stage", data.getHandle());
+        Report.registerInput(phase, data.getHandle());
         
+        // Privacy models
+        PrivacyModel[] models = getSecondStageModels(k, t, sensitive);
+
+        // Effects
+        List<Pair<String, Integer>> effects = new ArrayList<>();
+        List<Pair<String, Integer>> marginal = new ArrayList<>();
+        
+        // Anonymize
+        Data result;
+        switch (Engine.getMode()) {
+        case ARX:
+            progress.begin("Second stage", models.length + 1);
+            result = anonymize(data, effects, marginal, progress, models).getData();
+            break;
+        case CHECK:
+            progress.begin("Second stage", 2 * models.length + 2);
+            result = anonymize(data, effects, marginal, progress, getSecondStageEngine(k, t, sensitive));
+            List<Pair<String, Integer>> expected = new ArrayList<>();
+            List<Pair<String, Integer>> expectedMarginal = new ArrayList<>();
+            check(anonymize(data, expected, expectedMarginal, progress, models).getData(), expected, expectedMarginal, result, effects, marginal);
+            break;
+        default:
+            progress.begin("Second stage", models.length + 1);
+            result = anonymize(data, effects, marginal, progress, getSecondStageEngine(k, t, sensitive));
+            break;
+        }
+
+        // Report
+        progress.end();
+        Report.registerOutput(phase, result.getHandle(), effects, marginal);
+        
+        // Done
+        return result;
+    }
+    
+    /**
+     * Computes the records suppressed by each privacy model of the first and the second stage,
+     * for exploring the effects of combinations of models. Models of the first stage are applied
+     * one after the other by counting values, as by the anonymization process, and models of the
+     * second stage are evaluated on the output of the first stage.
+     * @param data Generalized data
+     * @param progress
+     * @return
+     */
+    public static Explorer explore(Data data, Progress progress) {
+
+        // Extract
+        Iterator<String[]> iter = data.getHandle().iterator();
+        String[] header = iter.next();
+        List<String[]> rows = new ArrayList<>();
+        while (iter.hasNext()) {
+            rows.add(iter.next());
+        }
+
+        // Classes of all records
+        Engine engine = getSecondStageEngine();
+        String[] variables = getFirstStageVariables();
+        progress.begin("Exploration", variables.length + 2);
+        Engine.Table classes = engine.createTable(Columns.encode(header, rows, engine.getAttributes()));
+        int[] classOfRow = new int[rows.size()];
+        for (int row = 0; row < classOfRow.length; row++) {
+            classOfRow[row] = classes.getClass(row);
+        }
+        Explorer explorer = new Explorer(classOfRow, classes.getNumberOfClasses());
+        progress.worked(1);
+
+        // First stage, each model applied to the records released by the previous models
+        BitSet firstStage = new BitSet(rows.size());
+        for (String variable : variables) {
+            int column = Arrays.asList(header).indexOf(variable);
+            Map<String, Integer> counts = new HashMap<>();
+            for (int row = firstStage.nextClearBit(0); row < rows.size(); row = firstStage.nextClearBit(row + 1)) {
+                counts.merge(rows.get(row)[column], 1, Integer::sum);
+            }
+            BitSet suppressed = new BitSet(rows.size());
+            for (int row = firstStage.nextClearBit(0); row < rows.size(); row = firstStage.nextClearBit(row + 1)) {
+                if (counts.get(rows.get(row)[column]) < FIRST_STAGE_K) {
+                    suppressed.set(row);
+                }
+            }
+            firstStage.or(suppressed);
+            explorer.addModel("First stage: " + new PrivacyModel(new KAnonymity(FIRST_STAGE_K), new Pair<>(variable, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE)).getDescription(), suppressed, true);
+            progress.worked(1);
+        }
+
+        // Second stage, evaluated on the output of the first stage
+        List<String[]> released = new ArrayList<>();
+        int[] releasedRows = new int[rows.size() - firstStage.cardinality()];
+        for (int row = firstStage.nextClearBit(0); row < rows.size(); row = firstStage.nextClearBit(row + 1)) {
+            releasedRows[released.size()] = row;
+            released.add(rows.get(row));
+        }
+        Engine.Table table = engine.createTable(Columns.encode(header, released, engine.getAttributes()));
+        int[] masks = engine.evaluate(table, table.getDistributions());
+        for (int model = 0; model < engine.getNumberOfModels(); model++) {
+            BitSet suppressed = new BitSet(rows.size());
+            for (int row = 0; row < releasedRows.length; row++) {
+                if ((masks[table.getClass(row)] & (1 << model)) != 0) {
+                    suppressed.set(releasedRows[row]);
+                }
+            }
+            explorer.addModel("Second stage: " + engine.getDescription(model), suppressed, false);
+        }
+        progress.worked(1);
+
+        // Done
+        progress.end();
+        return explorer;
+    }
+
+    /**
+     * Estimates the effects of the first and the second stage. The first stage is evaluated
+     * exactly by counting values, as it suppresses all records with values that occur less than
+     * k times. The second stage is evaluated on a sample of the equivalence classes defined by
+     * the quasi-identifiers, in which each class is contained with the given probability. The
+     * sampled classes are evaluated with the native engine against the distributions of sensitive
+     * values of all records, which t-closeness compares classes with, so that the estimates are
+     * not biased by the sample.
+     * @param data Generalized data
+     * @param fraction
+     * @param seed
+     * @param progress
+     * @return
+     * @throws IOException
+     */
+    public static Preview preview(Data data, double fraction, long seed, Progress progress) throws IOException {
+
+        // Extract
+        Iterator<String[]> iter = data.getHandle().iterator();
+        String[] header = iter.next();
+        List<String[]> rows = new ArrayList<>();
+        while (iter.hasNext()) {
+            rows.add(iter.next());
+        }
+
+        // First stage
+        String[] variables = getFirstStageVariables();
+        List<Pair<String, Integer>> effects = new ArrayList<>();
+        progress.begin("Preview of first stage", variables.length);
+        for (String variable : variables) {
+
+            // Count
+            int column = Arrays.asList(header).indexOf(variable);
+            Map<String, Integer> counts = new HashMap<>();
+            for (String[] row : rows) {
+                Integer count = counts.get(row[column]);
+                counts.put(row[column], count == null ? 1 : count + 1);
+            }
+
+            // Suppress
+            List<String[]> retained = new ArrayList<>();
+            for (String[] row : rows) {
+                if (counts.get(row[column]) >= FIRST_STAGE_K) {
+                    retained.add(row);
+                }
+            }
+            effects.add(new Pair<>(new PrivacyModel(new KAnonymity(FIRST_STAGE_K), new Pair<>(variable, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE)).getDescription(), rows.size() - retained.size()));
+            rows = retained;
+            progress.worked(1);
+        }
+        progress.end();
+
+        // Overall distributions of sensitive values, computed from all records
+        Engine engine = getSecondStageEngine();
+        progress.begin("Preview of second stage", 2);
+        long[][] distributions = engine.getDistributions(Columns.encode(header, rows, engine.getAttributes()));
+        progress.worked(1);
+
+        // Sample classes
+        int[] qis = getIndices(header, IO.FIELD_AGE, IO.FIELD_GENDER, IO.FIELD_DIAGNOSIS_MONTH, IO.FIELD_DIAGNOSIS_YEAR);
+        Map<String, Boolean> sampled = new HashMap<>();
+        List<String[]> sample = new ArrayList<>();
+        for (String[] row : rows) {
+            String key = getKey(row, qis);
+            if (sampled.computeIfAbsent(key, k -> new Random(seed * 31L + key.hashCode()).nextDouble() < fraction)) {
+                sample.add(row);
+            }
+        }
+
+        // Second stage, evaluated on the sampled classes against the overall distributions
+        Engine.Table table = engine.createTable(Columns.encode(header, sample, engine.getAttributes()));
+        int[] masks = engine.evaluate(table, distributions);
+        Preview preview = new Preview(fraction, rows.size(), sample.size(), table.getNumberOfClasses(), effects);
+        for (int model = 0; model < engine.getNumberOfModels(); model++) {
+            List<Double> values = new ArrayList<>();
+            for (int clazz = 0; clazz < table.getNumberOfClasses(); clazz++) {
+                if ((masks[clazz] & (1 << model)) != 0) {
+                    values.add((double) table.getSize(clazz));
+                }
+            }
+            preview.addEffect(engine.getDescription(model), Preview.getTotal(values, fraction, rows.size()));
+        }
+
+        // Released records and risks
+        List<Double> released = new ArrayList<>();
+        List<Double> classes = new ArrayList<>();
+        int sizeMin = Integer.MAX_VALUE;
+        int sizeMax = 0;
+        for (int clazz = 0; clazz < table.getNumberOfClasses(); clazz++) {
+            if (masks[clazz] == 0) {
+                int size = table.getSize(clazz);
+                released.add((double) size);
+                classes.add(1d);
+                sizeMin = Math.min(sizeMin, size);
+                sizeMax = Math.max(sizeMax, size);
+            }
+        }
+        preview.setReleased(Preview.getTotal(released, fraction, rows.size()));
+        preview.setRisks(sizeMax == 0 ? 0d : 1d / sizeMax, Preview.getRatio(classes, released, fraction), sizeMax == 0 ? 0d : 1d / sizeMin);
+        progress.end();
+
+        // Done
+        return preview;
+    }
+
+    /**
+     * Returns the values defined for a field by its transformation rule. Returns an
+     * empty array, if no rule is defined for the field.
+     * @param field
+     * @return
+     */
+    public static String[] getDomain(String field) {
+        Hierarchy hierarchy = getHierarchy(field);
+        if (hierarchy == null) {
+            return new String[0];
+        }
+        String[][] rows = hierarchy.getHierarchy();
+        String[] domain = new String[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            domain[i] = rows[i][0];
+        }
+        return domain;
+    }
+
+    /**
+     * Returns the quasi-identifiers
+     * @return
+     */
+    public static String[] getQuasiIdentifiers() {
+        return new String[] { IO.FIELD_AGE, IO.FIELD_GENDER, IO.FIELD_DIAGNOSIS_MONTH, IO.FIELD_DIAGNOSIS_YEAR };
+    }
+
+    /**
+     * Returns an engine, which evaluates the privacy models of the second stage on classes
+     * @return
+     */
+    public static Engine getSecondStageEngine() {
+        return getSecondStageEngine(SECOND_STAGE_K, SECOND_STAGE_T, getSensitiveAttributes());
+    }
+
+    /**
+     * Returns an engine, which evaluates the privacy models of the second stage with the given parameters
+     * @param k
+     * @param t
+     * @param sensitive
+     * @return
+     */
+    public static Engine getSecondStageEngine(int k, double t, String... sensitive) {
+
+        // Quasi-identifiers
+        PrivacyModel[] models = getSecondStageModels(k, t, sensitive);
+        Set<String> quasiIdentifiers = new LinkedHashSet<>();
+        for (PrivacyModel model : models) {
+            for (Pair<String, AttributeType> attribute : model.attributes) {
+                if (attribute.getSecond() == AttributeType.QUASI_IDENTIFYING_ATTRIBUTE) {
+                    quasiIdentifiers.add(attribute.getFirst());
+                }
+            }
+        }
+
+        // Models
+        Engine engine = new Engine(quasiIdentifiers.toArray(new String[quasiIdentifiers.size()]));
+        for (PrivacyModel model : models) {
+            if (model.model instanceof KAnonymity) {
+                engine.addKAnonymity(((KAnonymity) model.model).getK(), model.getDescription());
+            } else if (model.model instanceof HierarchicalDistanceTCloseness) {
+                HierarchicalDistanceTCloseness criterion = (HierarchicalDistanceTCloseness) model.model;
+                engine.addTCloseness(criterion.getAttribute(), getHierarchy(criterion.getAttribute()), criterion.getT(), model.getDescription());
+            } else {
+                throw new IllegalStateException("Unsupported privacy model: " + model.model);
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the sensitive attributes protected in the second stage
+     * @return
+     */
+    public static String[] getSensitiveAttributes() {
+        PrivacyModel[] models = getSecondStageModels();
+        List<String> result = new ArrayList<>();
+        for (PrivacyModel model : models) {
+            if (model.attributes[0].getSecond() == AttributeType.SENSITIVE_ATTRIBUTE) {
+                result.add(model.attributes[0].getFirst());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns the privacy models enforced in the second stage
+     * @return
+     */
+    private static PrivacyModel[] getSecondStageModels() {
+        return getSecondStageModels(SECOND_STAGE_K, SECOND_STAGE_T, (String[]) null);
+    }
+
+    /**
+     * Returns the privacy models enforced in the second stage with the given parameters
+     * @param k
+     * @param t
+     * @param sensitive Sensitive attributes to protect, all if null
+     * @return
+     */
+    private static PrivacyModel[] getSecondStageModels(int k, double t, String... sensitive) {
+
         // Privacy model
-        PrivacyModel model1 = new PrivacyModel(new KAnonymity(11), 
+        PrivacyModel model1 = new PrivacyModel(new KAnonymity(k), 
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_DIAGNOSIS_MONTH, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
 
         // Privacy model
-        PrivacyModel model2 = new PrivacyModel(getPrivacyModel(IO.FIELD_LAST_KNOWN_STATUS, RULE_STATUS),
+        PrivacyModel model2 = new PrivacyModel(getPrivacyModel(IO.FIELD_LAST_KNOWN_STATUS, RULE_STATUS, t),
                                                new Pair<>(IO.FIELD_LAST_KNOWN_STATUS, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
@@ -212,7 +683,7 @@ public class Anon {
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
         
         // Privacy model
-        PrivacyModel model3 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_COMPLICATED_VASSOPRESSORS, RULE_INTERVENTION),
+        PrivacyModel model3 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_COMPLICATED_VASSOPRESSORS, RULE_INTERVENTION, t),
                                                new Pair<>(IO.FIELD_PHASE_COMPLICATED_VASSOPRESSORS, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
@@ -220,7 +691,7 @@ public class Anon {
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
         
         // Privacy model
-        PrivacyModel model4 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_CRITICIAL_VASSOPRESSORS, RULE_INTERVENTION),
+        PrivacyModel model4 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_CRITICIAL_VASSOPRESSORS, RULE_INTERVENTION, t),
                                                new Pair<>(IO.FIELD_PHASE_CRITICIAL_VASSOPRESSORS, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
@@ -228,7 +699,7 @@ public class Anon {
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
         
         // Privacy model
-        PrivacyModel model5 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_CRITICIAL_VENTILATION, RULE_INTERVENTION),
+        PrivacyModel model5 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_CRITICIAL_VENTILATION, RULE_INTERVENTION, t),
                                                new Pair<>(IO.FIELD_PHASE_CRITICIAL_VENTILATION, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
@@ -236,7 +707,7 @@ public class Anon {
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
         
         // Privacy model
-        PrivacyModel model6 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION, RULE_INFECTION),
+        PrivacyModel model6 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION, RULE_INFECTION, t),
                                                new Pair<>(IO.FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
@@ -244,7 +715,7 @@ public class Anon {
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
         
         // Privacy model
-        PrivacyModel model7 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_COMPLICATED_SUPERINFECTION, RULE_INFECTION),
+        PrivacyModel model7 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_COMPLICATED_SUPERINFECTION, RULE_INFECTION, t),
                                                new Pair<>(IO.FIELD_PHASE_COMPLICATED_SUPERINFECTION, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
@@ -252,7 +723,7 @@ public class Anon {
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
         
         // Privacy model
-        PrivacyModel model8 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION, RULE_INFECTION),
+        PrivacyModel model8 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION, RULE_INFECTION, t),
                                                new Pair<>(IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
@@ -260,61 +731,314 @@ public class Anon {
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
         
         // Privacy model
-        PrivacyModel model9 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_RECOVERY_SYMPTOMS, RULE_SYMPTOMS),
+        PrivacyModel model9 = new PrivacyModel(getPrivacyModel(IO.FIELD_PHASE_RECOVERY_SYMPTOMS, RULE_SYMPTOMS, t),
                                                new Pair<>(IO.FIELD_PHASE_RECOVERY_SYMPTOMS, AttributeType.SENSITIVE_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_DIAGNOSIS_MONTH, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE),
                                                new Pair<>(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE));
 
-        // Effects
-        List<Pair<String, Integer>> effects = new ArrayList<>();
-        
-        // Anonymize
-        DataHandle handle = anonymize(data, effects, model1, model2, model3, model4, model5, model6, model7, model8, model9);
+        // Restrict
+        List<PrivacyModel> models = new ArrayList<>(Arrays.asList(model1, model2, model3, model4, model5, model6, model7, model8, model9));
+        if (sensitive != null) {
+            List<String> fields = Arrays.asList(sensitive);
+            models.removeIf(model -> model.attributes[0].getSecond() == AttributeType.SENSITIVE_ATTRIBUTE && !fields.contains(model.attributes[0].getFirst()));
+        }
 
-        // Report
-        Report.registerOutput("Second stage", Util.getData(handle).getHandle(), effects);
-        
         // Done
-        return Util.getData(handle);
+        return models.toArray(new PrivacyModel[models.size()]);
     }
-    
+
+    /**
+     * Returns the transformation rule for a field, null if there is none
+     * @param field
+     * @return
+     */
+    private static Hierarchy getHierarchy(String field) {
+        switch (field) {
+        case IO.FIELD_AGE:
+            return RULE_AGE;
+        case IO.FIELD_GENDER:
+            return RULE_GENDER;
+        case IO.FIELD_DIAGNOSIS_MONTH:
+            return RULE_MONTH;
+        case IO.FIELD_DIAGNOSIS_YEAR:
+            return RULE_YEAR;
+        case IO.FIELD_LAST_KNOWN_STATUS:
+            return RULE_STATUS;
+        case IO.FIELD_PHASE_COMPLICATED_VASSOPRESSORS:
+        case IO.FIELD_PHASE_CRITICIAL_VASSOPRESSORS:
+        case IO.FIELD_PHASE_CRITICIAL_VENTILATION:
+            return RULE_INTERVENTION;
+        case IO.FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION:
+        case IO.FIELD_PHASE_COMPLICATED_SUPERINFECTION:
+        case IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION:
+            return RULE_INFECTION;
+        case IO.FIELD_PHASE_RECOVERY_SYMPTOMS:
+            return RULE_SYMPTOMS;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Returns the indices of the given fields
+     * @param header
+     * @param fields
+     * @return
+     */
+    private static int[] getIndices(String[] header, String... fields) {
+        int[] indices = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            indices[i] = Arrays.asList(header).indexOf(fields[i]);
+        }
+        return indices;
+    }
+
+    /**
+     * Returns a key for the values of the given columns
+     * @param row
+     * @param columns
+     * @return
+     */
+    private static String getKey(String[] row, int[] columns) {
+        StringBuilder builder = new StringBuilder();
+        for (int column : columns) {
+            builder.append(row[column]).append('\u0000');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns a key for the values of the given columns
+     * @param handle
+     * @param row
+     * @param columns
+     * @return
+     */
+    private static String getKey(DataHandle handle, int row, int[] columns) {
+        StringBuilder builder = new StringBuilder();
+        for (int column : columns) {
+            builder.append(handle.getValue(row, column)).append('\u0000');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the variables protected in the first stage
+     * @return
+     */
+    private static String[] getFirstStageVariables() {
+        return new String[] {
+            IO.FIELD_AGE,
+            IO.FIELD_GENDER,
+            IO.FIELD_DIAGNOSIS_MONTH,
+            IO.FIELD_DIAGNOSIS_YEAR,
+            IO.FIELD_PHASE_UNCOMPLICATED,
+            IO.FIELD_PHASE_COMPLICATED,
+            IO.FIELD_PHASE_CRITICAL,
+            IO.FIELD_PHASE_RECOVERY,
+            IO.FIELD_PHASE_COMPLICATED_VASSOPRESSORS,
+            IO.FIELD_PHASE_CRITICIAL_VASSOPRESSORS,
+            IO.FIELD_PHASE_CRITICIAL_VENTILATION,
+            IO.FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION,
+            IO.FIELD_PHASE_COMPLICATED_SUPERINFECTION,
+            IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION,
+            IO.FIELD_PHASE_RECOVERY_SYMPTOMS,
+            IO.FIELD_LAST_KNOWN_STATUS
+        };
+    }
+
     /**
      * Returns the privacy model for a specific sensitive attribute
      * @param attribute
      * @param transformationRule
+     * @param t
      * @return
      */
-    private static PrivacyCriterion getPrivacyModel(String attribute, Hierarchy transformationRule) {
-        return new HierarchicalDistanceTCloseness(attribute, 0.5d, transformationRule);
+    private static PrivacyCriterion getPrivacyModel(String attribute, Hierarchy transformationRule, double t) {
+        return new HierarchicalDistanceTCloseness(attribute, t, transformationRule);
+    }
+
+    /**
+     * Checks whether the results of ARX and of the native engine are identical
+     * @param expected Output of ARX
+     * @param expectedEffects Effects determined with ARX
+     * @param expectedMarginal Records released if only one model was dropped, determined with ARX
+     * @param actual Output of the native engine
+     * @param actualEffects Effects determined with the native engine
+     * @param actualMarginal Records released if only one model was dropped, determined with the native engine
+     */
+    private static void check(Data expected, List<Pair<String, Integer>> expectedEffects, List<Pair<String, Integer>> expectedMarginal,
+                              Data actual, List<Pair<String, Integer>> actualEffects, List<Pair<String, Integer>> actualMarginal) {
+        if (!expectedEffects.equals(actualEffects)) {
+            throw new IllegalStateException("Effects differ. ARX: " + expectedEffects + ", native engine: " + actualEffects);
+        }
+        if (!expectedMarginal.equals(actualMarginal)) {
+            throw new IllegalStateException("Marginal effects differ. ARX: " + expectedMarginal + ", native engine: " + actualMarginal);
+        }
+        Iterator<String[]> iter1 = expected.getHandle().iterator();
+        Iterator<String[]> iter2 = actual.getHandle().iterator();
+        int row = 0;
+        while (iter1.hasNext() && iter2.hasNext()) {
+            if (!Arrays.equals(iter1.next(), iter2.next())) {
+                throw new IllegalStateException("Outputs differ in row " + row);
+            }
+            row++;
+        }
+        if (iter1.hasNext() || iter2.hasNext()) {
+            throw new IllegalStateException("Outputs differ in the number of records");
+        }
+    }
+
+    /**
+     * Anonymization with the native engine, which evaluates all models on all classes in one pass
+     * @param data
+     * @param effects
+     * @param marginal Records which would be released if only the model was dropped
+     * @param progress
+     * @param engine
+     * @return
+     * @throws IOException 
+     */
+    private static Data anonymize(Data data, List<Pair<String, Integer>> effects, List<Pair<String, Integer>> marginal, Progress progress, Engine engine) throws IOException {
+
+        // Once the memory required is available
+        return Scheduler.run(getMemory(data), progress, () -> {
+
+            // Prepare
+            progress.step("All models");
+            Events.Anonymization event = new Events.Anonymization();
+            event.begin();
+            Iterator<String[]> iter = data.getHandle().iterator();
+            String[] header = iter.next();
+            List<String[]> rows = new ArrayList<>();
+            while (iter.hasNext()) {
+                rows.add(iter.next());
+            }
+
+            // Encode the attributes required and evaluate
+            int records = rows.size();
+            int[] counts = new int[engine.getNumberOfModels()];
+            int[] released = new int[engine.getNumberOfModels()];
+            List<String[]> output = new ArrayList<>();
+            output.add(header);
+            Engine.Table table = engine.createTable(Columns.encode(header, rows, engine.getAttributes()));
+            int[] masks = engine.evaluate(table, table.getDistributions());
+
+            // Suppress, keeping the records released
+            for (int row = 0; row < records; row++) {
+                int mask = masks[table.getClass(row)];
+                if (mask == 0) {
+                    output.add(rows.get(row));
+                } else {
+                    for (int model = 0; model < counts.length; model++) {
+                        if ((mask & (1 << model)) != 0) {
+                            counts[model]++;
+                        }
+                    }
+                    if (Integer.bitCount(mask) == 1) {
+                        released[Integer.numberOfTrailingZeros(mask)]++;
+                    }
+                }
+            }
+            for (int model = 0; model < counts.length; model++) {
+                effects.add(new Pair<>(engine.getDescription(model), counts[model]));
+                marginal.add(new Pair<>(engine.getDescription(model), released[model]));
+            }
+            progress.worked(counts.length + 1);
+
+            // Done
+            event.model = "All models (native)";
+            event.records = records;
+            event.suppressed = records - output.size() + 1;
+            event.commit();
+            return Data.create(output);
+        });
     }
 
     /**
      * Internal anonymization method to be able to generate statistics
      * @param data
      * @param effects
+     * @param marginal Records which would be released if only the model was dropped, may be null
+     * @param progress
      * @param models
      * @return
      * @throws IOException 
      */
-    private static DataHandle anonymize(Data data, List<Pair<String, Integer>> effects, PrivacyModel... models) throws IOException {
+    private static Result anonymize(Data data, List<Pair<String, Integer>> effects, List<Pair<String, Integer>> marginal, Progress progress, PrivacyModel... models) throws IOException {
+        
+        // The effect of a single model can be obtained from the result directly
+        if (models.length == 1) {
+            progress.step(models[0].getDescription());
+            Result result = anonymize(data, progress, models);
+            effects.add(new Pair<>(models[0].getDescription(), result.getNumberOfSuppressedRecords()));
+            if (marginal != null) {
+                marginal.add(new Pair<>(models[0].getDescription(), result.getNumberOfSuppressedRecords()));
+            }
+            progress.worked(2);
+            return result;
+        }
+        
+        // Prepare independent runs for each model and for all models. Data is copied
+        // upfront, as handles must not be accessed concurrently.
+        List<Callable<Result>> runs = new ArrayList<>();
         for (PrivacyModel model : models) {
-            DataHandle handle = anonymize(Util.getData(data.getHandle()), model);
-            effects.add(new Pair<>(model.attributes[0].getFirst() + ", " + model.model.toString(), handle.getStatistics().getEquivalenceClassStatistics().getNumberOfSuppressedRecords()));
+            Data copy = Util.getData(data.getHandle());
+            PrivacyModel run = model.copy();
+            runs.add(() -> {
+                progress.step(run.getDescription());
+                Result result = anonymize(copy, progress, run);
+                progress.worked(1);
+                return result;
+            });
+        }
+        PrivacyModel[] all = new PrivacyModel[models.length];
+        for (int i = 0; i < models.length; i++) {
+            all[i] = models[i].copy();
+        }
+        runs.add(() -> {
+            progress.step("All models");
+            Result result = anonymize(data, progress, all);
+            progress.worked(1);
+            return result;
+        });
+        
+        // Execute
+        List<Result> results = Pipeline.invokeAll(runs);
+        for (int i = 0; i < models.length; i++) {
+            effects.add(new Pair<>(models[i].getDescription(), results.get(i).getNumberOfSuppressedRecords()));
         }
-        return anonymize(data, models);
+
+        // Records only suppressed by one model, as records are suppressed if any model suppresses their class
+        if (marginal != null) {
+            for (int i = 0; i < models.length; i++) {
+                int released = 0;
+                for (Entry<String, Integer> entry : results.get(i).getSuppressedClasses().entrySet()) {
+                    boolean others = false;
+                    for (int j = 0; j < models.length && !others; j++) {
+                        others = j != i && results.get(j).suppressed.contains(entry.getKey());
+                    }
+                    released += others ? 0 : entry.getValue();
+                }
+                marginal.add(new Pair<>(models[i].getDescription(), released));
+            }
+        }
+        return results.get(models.length);
     }
     
     /**
-     * Internal anonymization method to be able to generate statistics
+     * Internal anonymization method to be able to generate statistics. As records are only
+     * suppressed, the result is determined by the histogram of the classes and the privacy
+     * models. Results are therefore cached by a fingerprint of both.
      * @param data
-     * @param effects
+     * @param progress
      * @param models
      * @return
      * @throws IOException 
      */
-    private static DataHandle anonymize(Data data, PrivacyModel... models) throws IOException {
+    private static Result anonymize(Data data, Progress progress, PrivacyModel... models) throws IOException {
 
         // Define all as insensitive
         for (int i = 0; i < data.getHandle().getNumColumns(); i++) {
@@ -333,10 +1057,123 @@ public class Anon {
             }
             config.addPrivacyModel(model.model);
         }
+
+        // Lookup
+        Events.Anonymization event = new Events.Anonymization();
+        event.begin();
+        event.model = models.length == 1 ? models[0].getDescription() : "All models";
+        event.records = data.getHandle().getNumRows();
+        Set<String> quasiIdentifiers = new LinkedHashSet<>();
+        Set<String> attributes = new LinkedHashSet<>();
+        for (PrivacyModel model : models) {
+            for (Pair<String, AttributeType> attribute : model.attributes) {
+                if (attribute.getSecond() == AttributeType.QUASI_IDENTIFYING_ATTRIBUTE) {
+                    quasiIdentifiers.add(attribute.getFirst());
+                }
+                attributes.add(attribute.getFirst());
+            }
+        }
+        String[] header = data.getHandle().iterator().next();
+        int[] columns = getIndices(header, quasiIdentifiers.toArray(new String[quasiIdentifiers.size()]));
+        String fingerprint = Cache.isEnabled() ? getFingerprint(data, getIndices(header, attributes.toArray(new String[attributes.size()])), models) : null;
+        Set<String> suppressed = fingerprint == null ? null : Cache.get(fingerprint);
+        if (suppressed != null) {
+            Result result = new Result(data, columns, suppressed, null);
+            if (event.shouldCommit()) {
+                event.suppressed = result.getNumberOfSuppressedRecords();
+                event.cached = true;
+                event.commit();
+            }
+            return result;
+        }
         
-        // Anonymize
+        // Anonymize, once the memory required is available
         ARXAnonymizer anonymizer = new ARXAnonymizer();
-        return anonymizer.anonymize(data, config).getOutput();
+        anonymizer.setListener(getListener(progress));
+        DataHandle output = Scheduler.run(getMemory(data), progress, () -> anonymizer.anonymize(data, config).getOutput());
+
+        // Store
+        DataHandle input = data.getHandle();
+        suppressed = new HashSet<>();
+        for (int row = 0; row < output.getNumRows(); row++) {
+            if (output.isOutlier(row)) {
+                suppressed.add(getKey(input, row, columns));
+            }
+        }
+        if (fingerprint != null) {
+            Cache.put(fingerprint, suppressed);
+        }
+        Result result = new Result(data, columns, suppressed, output);
+        if (event.shouldCommit()) {
+            event.suppressed = result.getNumberOfSuppressedRecords();
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Returns a fingerprint of the histogram of the given columns and of the privacy models
+     * @param data
+     * @param columns
+     * @param models
+     * @return
+     */
+    private static String getFingerprint(Data data, int[] columns, PrivacyModel... models) {
+
+        // Privacy models
+        Cache.Fingerprint fingerprint = new Cache.Fingerprint();
+        for (PrivacyModel model : models) {
+            fingerprint.add(model.model.toString());
+            for (Pair<String, AttributeType> attribute : model.attributes) {
+                fingerprint.add(attribute.getFirst()).add(attribute.getSecond().toString());
+                Hierarchy hierarchy = getHierarchy(attribute.getFirst());
+                if (attribute.getSecond() == AttributeType.SENSITIVE_ATTRIBUTE && hierarchy != null) {
+                    for (String[] values : hierarchy.getHierarchy()) {
+                        fingerprint.add(String.join("\u0000", values));
+                    }
+                }
+            }
+        }
+
+        // Histogram, whose classes are sorted once to be independent of the order of the records
+        Map<String, int[]> histogram = new HashMap<>();
+        Iterator<String[]> iter = data.getHandle().iterator();
+        iter.next();
+        while (iter.hasNext()) {
+            histogram.computeIfAbsent(getKey(iter.next(), columns), key -> new int[1])[0]++;
+        }
+        List<String> keys = new ArrayList<>(histogram.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            fingerprint.add(key).add(histogram.get(key)[0]);
+        }
+
+        // Done
+        return fingerprint.get();
+    }
+
+    /**
+     * Returns the estimated memory required for anonymizing the data. The number of
+     * distinct values of each column is bounded by the size of its dictionary.
+     * @param data
+     * @return
+     */
+    private static long getMemory(Data data) {
+        DataHandle handle = data.getHandle();
+        int[] cardinalities = new int[handle.getNumColumns()];
+        for (int i = 0; i < cardinalities.length; i++) {
+            cardinalities[i] = Math.max(1, Dictionary.get(handle.getAttributeName(i)).size());
+        }
+        return Scheduler.estimate(handle.getNumRows(), cardinalities);
+    }
+
+    /**
+     * Returns a listener, which aborts ARX when the run has been cancelled
+     * @param progress
+     * @return
+     */
+    private static ARXListener getListener(Progress progress) {
+        return value -> progress.check();
     }
 
     /**
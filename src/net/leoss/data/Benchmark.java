@@ -0,0 +1,75 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the wall-clock time of complete runs of the process, including
+ * the startup of the JVM
+ * @author Fabian Prasser
+ */
+public class Benchmark {
+
+    /**
+     * Main entry point. Expects a label, the number of runs, an input file and the
+     * command to launch the process. Input and output files are appended to the command.
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        // Check
+        if (args == null || args.length < 4) {
+            throw new IllegalArgumentException("You need to specify a label, the number of runs, an input file and a command.");
+        }
+        String label = args[0];
+        int runs = Integer.parseInt(args[1]);
+        File input = new File(args[2]);
+        File output = File.createTempFile("benchmark", ".csv");
+
+        // Command
+        List<String> command = new ArrayList<>(Arrays.asList(args).subList(3, args.length));
+        command.add(input.getAbsolutePath());
+        command.add(output.getAbsolutePath());
+
+        // Measure
+        long[] times = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Process failed: " + command);
+            }
+            times[run] = (System.nanoTime() - start) / 1000000L;
+        }
+
+        // Cleanup
+        output.delete();
+        new File(output.getAbsolutePath() + ".report").delete();
+
+        // Report
+        Arrays.sort(times);
+        System.out.println(label + ": runs " + runs + ", min " + times[0] + " ms, median " + times[runs / 2] + " ms, max " + times[runs - 1] + " ms");
+    }
+}
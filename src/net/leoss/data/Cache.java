@@ -0,0 +1,249 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache for the results of anonymization runs which only suppress records. Results are
+ * stored as the set of suppressed equivalence classes and identified by a fingerprint
+ * of the histogram of the input and the privacy models. Optionally, recently used results
+ * are kept in memory and all results are stored in a directory. As fingerprints of the runs
+ * within one release are distinct, results are mostly reused across releases from the
+ * directory, and fingerprints are only computed if the cache is enabled.
+ * @author Fabian Prasser
+ */
+public class Cache {
+
+    /**
+     * Builds fingerprints
+     * @author Fabian Prasser
+     */
+    public static class Fingerprint {
+
+        /** Digest */
+        private final MessageDigest digest;
+
+        /**
+         * Creates a new instance
+         */
+        public Fingerprint() {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            add(VERSION);
+        }
+
+        /**
+         * Adds a string
+         * @param value
+         * @return
+         */
+        public Fingerprint add(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            add(bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        /**
+         * Adds an integer
+         * @param value
+         * @return
+         */
+        public Fingerprint add(int value) {
+            digest.update((byte) (value >>> 24));
+            digest.update((byte) (value >>> 16));
+            digest.update((byte) (value >>> 8));
+            digest.update((byte) value);
+            return this;
+        }
+
+        /**
+         * Returns the fingerprint as a hex string
+         * @return
+         */
+        public String get() {
+            StringBuilder builder = new StringBuilder();
+            for (byte value : digest.digest()) {
+                builder.append(String.format("%02x", value));
+            }
+            return builder.toString();
+        }
+    }
+
+    /** Version of the format and the process, must be changed when transformation rules change */
+    private static final String                   VERSION   = "1";
+    /** Maximal number of results kept in memory */
+    private static int                            capacity  = 0;
+    /** Directory, may be null */
+    private static File                           directory = null;
+    /** Results kept in memory, in access order */
+    private static final Map<String, Set<String>> RESULTS   = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+            return size() > capacity;
+        }
+    };
+    /** Results being read from disk */
+    private static final Map<String, FutureTask<Set<String>>> LOADING = new HashMap<>();
+
+    /**
+     * Returns the suppressed classes for the given fingerprint, null if unknown. Results
+     * are read from disk outside of the lock, concurrent requests for the same result wait
+     * for the same read.
+     * @param fingerprint
+     * @return
+     * @throws IOException
+     */
+    public static Set<String> get(String fingerprint) throws IOException {
+
+        // Memory
+        FutureTask<Set<String>> future;
+        synchronized (Cache.class) {
+            Set<String> result = RESULTS.get(fingerprint);
+            if (result != null || directory == null) {
+                return result;
+            }
+            File file = new File(directory, fingerprint);
+            future = LOADING.computeIfAbsent(fingerprint, key -> new FutureTask<>(() -> read(file)));
+        }
+
+        // Disk
+        Set<String> result = null;
+        try {
+            result = Pipeline.join(future);
+            return result;
+        } finally {
+            synchronized (Cache.class) {
+                if (LOADING.remove(fingerprint, future) && result != null) {
+                    RESULTS.put(fingerprint, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether results are kept in memory or stored in a directory
+     * @return
+     */
+    public static synchronized boolean isEnabled() {
+        return capacity > 0 || directory != null;
+    }
+
+    /**
+     * Stores the suppressed classes for the given fingerprint. The result is written to
+     * disk outside of the lock.
+     * @param fingerprint
+     * @param classes
+     * @throws IOException
+     */
+    public static void put(String fingerprint, Set<String> classes) throws IOException {
+
+        // Memory
+        File directory;
+        classes = Collections.unmodifiableSet(new HashSet<>(classes));
+        synchronized (Cache.class) {
+            RESULTS.put(fingerprint, classes);
+            directory = Cache.directory;
+        }
+        if (directory == null) {
+            return;
+        }
+
+        // Disk, written to a temporary file first, so that there are no partial entries
+        File file = new File(directory, fingerprint);
+        File temporary = File.createTempFile(fingerprint, ".tmp", directory);
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                output.writeInt(classes.size());
+                for (String value : classes) {
+                    output.writeUTF(value);
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Sets the maximal number of results kept in memory. 0 disables the cache in memory.
+     * @param capacity
+     */
+    public static synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity must not be negative.");
+        }
+        Cache.capacity = capacity;
+        RESULTS.clear();
+    }
+
+    /**
+     * Sets the directory in which results are stored, null disables the cache on disk
+     * @param directory
+     */
+    public static synchronized void setDirectory(File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("The cache directory can't be created.");
+        }
+        Cache.directory = directory;
+    }
+
+    /**
+     * Reads the suppressed classes from a file
+     * @param file
+     * @return The classes, null if the file doesn't exist
+     * @throws IOException
+     */
+    private static Set<String> read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Set<String> result = new HashSet<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int size = input.readInt();
+            for (int i = 0; i < size; i++) {
+                result.add(input.readUTF());
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+}
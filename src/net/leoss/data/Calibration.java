@@ -0,0 +1,229 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.deidentifier.arx.ARXAnonymizer;
+import org.deidentifier.arx.ARXConfiguration;
+import org.deidentifier.arx.ARXResult;
+import org.deidentifier.arx.AttributeType;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+import org.deidentifier.arx.criteria.KAnonymity;
+import org.deidentifier.arx.metric.Metric;
+
+/**
+ * Measures the memory required by runs of ARX on subsets of an input file and fits
+ * the parameters of the estimate of the {@link Scheduler} by least squares. Runs are
+ * configured as the runs determining the effects of the privacy models. The memory
+ * of a run is the peak of the heap used after collections, which are triggered
+ * whenever ARX reports progress and after the run, minus the heap used before it.
+ * @author Fabian Prasser
+ */
+public class Calibration {
+
+    /** Shares of the records measured */
+    private static final double[]     RECORDS = new double[] { 0.25d, 0.5d, 1d };
+    /** Shares of the columns measured */
+    private static final double[]     COLUMNS = new double[] { 0.25d, 0.5d, 1d };
+
+    /** Memory */
+    private static final MemoryMXBean MEMORY  = ManagementFactory.getMemoryMXBean();
+
+    /**
+     * Main entry point. Expects an input file and the file into which the parameters are written.
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        // Check
+        if (args == null || args.length < 2) {
+            throw new IllegalArgumentException("You need to specify an input file and an output file.");
+        }
+
+        // Load
+        List<String[]> rows = new ArrayList<>();
+        Iterator<String[]> iterator = IO.loadData(new File(args[0]), Progress.none()).getHandle().iterator();
+        String[] header = iterator.next();
+        while (iterator.hasNext()) {
+            rows.add(iterator.next());
+        }
+
+        // Warm up
+        measure(header, rows, 1, RECORDS[0]);
+
+        // Measure rows * columns, rows and distinct values against bytes
+        List<double[]> samples = new ArrayList<>();
+        for (double records : RECORDS) {
+            for (double columns : COLUMNS) {
+                samples.add(measure(header, rows, Math.max(1, (int) Math.round(header.length * columns)), records));
+            }
+        }
+
+        // Fit
+        double[] parameters = fit(samples);
+        Properties properties = new Properties();
+        properties.setProperty(Scheduler.KEY_CELL, String.valueOf(Math.max(0L, Math.round(parameters[0]))));
+        properties.setProperty(Scheduler.KEY_RECORD, String.valueOf(Math.max(0L, Math.round(parameters[1]))));
+        properties.setProperty(Scheduler.KEY_VALUE, String.valueOf(Math.max(0L, Math.round(parameters[2]))));
+
+        // Write
+        try (OutputStream output = new FileOutputStream(args[1])) {
+            properties.store(output, "Parameters of the memory estimate, measured on " + rows.size() + " records");
+        }
+        System.out.println("calibration: " + properties);
+    }
+
+    /**
+     * Solves the normal equations of the least squares fit of the last element of
+     * each sample by the others
+     * @param samples
+     * @return
+     */
+    private static double[] fit(List<double[]> samples) {
+
+        // Normal equations
+        int n = samples.get(0).length - 1;
+        double[][] matrix = new double[n][n + 1];
+        for (double[] sample : samples) {
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    matrix[i][j] += sample[i] * sample[j];
+                }
+                matrix[i][n] += sample[i] * sample[n];
+            }
+        }
+
+        // Gaussian elimination with partial pivoting
+        for (int i = 0; i < n; i++) {
+            int pivot = i;
+            for (int j = i + 1; j < n; j++) {
+                if (Math.abs(matrix[j][i]) > Math.abs(matrix[pivot][i])) {
+                    pivot = j;
+                }
+            }
+            double[] swap = matrix[i];
+            matrix[i] = matrix[pivot];
+            matrix[pivot] = swap;
+            if (matrix[i][i] == 0d) {
+                throw new IllegalStateException("Samples do not determine the parameters");
+            }
+            for (int j = i + 1; j < n; j++) {
+                double factor = matrix[j][i] / matrix[i][i];
+                for (int k = i; k <= n; k++) {
+                    matrix[j][k] -= factor * matrix[i][k];
+                }
+            }
+        }
+
+        // Back substitution
+        double[] result = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            double value = matrix[i][n];
+            for (int j = i + 1; j < n; j++) {
+                value -= matrix[i][j] * result[j];
+            }
+            result[i] = value / matrix[i][i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the heap used after a collection
+     * @return
+     */
+    private static long getUsed() {
+        System.gc();
+        System.gc();
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Measures a run of ARX on the first columns and records. The first column is
+     * the quasi-identifier.
+     * @param header
+     * @param rows
+     * @param columns
+     * @param records Share of records
+     * @return rows * columns, rows, distinct values and bytes
+     * @throws IOException
+     */
+    private static double[] measure(String[] header, List<String[]> rows, int columns, double records) throws IOException {
+
+        // Subset
+        int size = (int) Math.round(rows.size() * records);
+        List<String[]> subset = new ArrayList<>();
+        String[] fields = new String[columns];
+        System.arraycopy(header, 0, fields, 0, columns);
+        subset.add(fields);
+        for (int row = 0; row < size; row++) {
+            String[] values = new String[columns];
+            System.arraycopy(rows.get(row), 0, values, 0, columns);
+            subset.add(values);
+        }
+
+        // Distinct values
+        long values = 0L;
+        for (int column = 0; column < columns; column++) {
+            Set<String> distinct = new HashSet<>();
+            for (int row = 1; row < subset.size(); row++) {
+                distinct.add(subset.get(row)[column]);
+            }
+            values += Math.max(1, distinct.size());
+        }
+
+        // Define
+        Data data = Data.create(subset);
+        for (String field : fields) {
+            data.getDefinition().setAttributeType(field, AttributeType.INSENSITIVE_ATTRIBUTE);
+        }
+        data.getDefinition().setAttributeType(fields[0], AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
+        ARXConfiguration config = ARXConfiguration.create();
+        config.setSuppressionLimit(1d);
+        config.setQualityModel(Metric.createLossMetric());
+        config.addPrivacyModel(new KAnonymity(Anon.SECOND_STAGE_K));
+
+        // Measure
+        long before = getUsed();
+        long[] peak = new long[] { before };
+        ARXAnonymizer anonymizer = new ARXAnonymizer();
+        anonymizer.setListener(value -> peak[0] = Math.max(peak[0], getUsed()));
+        ARXResult result = anonymizer.anonymize(data, config);
+        DataHandle output = result.getOutput();
+        peak[0] = Math.max(peak[0], getUsed());
+        if (output.getNumRows() != size) {
+            throw new IllegalStateException("Internal error! This must not happen.");
+        }
+
+        // Done
+        return new double[] { (double) size * columns, size, values, peak[0] - before };
+    }
+}
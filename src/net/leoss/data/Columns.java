@@ -0,0 +1,346 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Encoded columns. Values are encoded with the dictionaries of the fields, and each
+ * column is stored as a buffer of codes backed by a single array, instead of a string
+ * per cell. Columns are encoded when needed and released by the garbage collector, as
+ * the records themselves remain in the data handed from stage to stage. Columns can be
+ * written to checkpoints, which are mapped into memory outside of the heap instead of
+ * being read, e.g. by the workers of the sharded second stage.
+ * @author Fabian Prasser
+ */
+public class Columns {
+
+    /**
+     * Writes records to a checkpoint one after the other, so that they don't need to be
+     * kept in memory. The columns of the checkpoint are mapped into memory, which is why
+     * the number of records must be known upfront.
+     * @author Fabian Prasser
+     */
+    public static class Writer implements Closeable {
+
+        /** File */
+        private final RandomAccessFile output;
+        /** Columns */
+        private final IntBuffer[]      columns;
+        /** Number of records */
+        private final int              rows;
+        /** Number of records written */
+        private int                    row = 0;
+
+        /**
+         * Creates a new instance
+         * @param file
+         * @param fields
+         * @param values Values of the codes of each column
+         * @param rows Number of records
+         * @throws IOException
+         */
+        public Writer(File file, String[] fields, String[][] values, int rows) throws IOException {
+
+            // Header
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream header = new DataOutputStream(bytes)) {
+                header.writeInt(MAGIC);
+                header.writeLong(0L);
+                header.writeInt(rows);
+                header.writeInt(fields.length);
+                for (int i = 0; i < fields.length; i++) {
+                    header.writeUTF(fields[i]);
+                    header.writeInt(values[i].length);
+                    for (String value : values[i]) {
+                        header.writeUTF(value);
+                    }
+                }
+            }
+            byte[] header = bytes.toByteArray();
+            long offset = header.length;
+            ByteBuffer.wrap(header).putLong(Integer.BYTES, offset); // Columns follow the header
+
+            // Columns
+            this.output = new RandomAccessFile(file, "rw");
+            this.rows = rows;
+            this.columns = new IntBuffer[fields.length];
+            try {
+                long size = (long) rows * Integer.BYTES;
+                output.setLength(offset + fields.length * size);
+                output.write(header);
+                for (int i = 0; i < fields.length; i++) {
+                    columns[i] = output.getChannel().map(FileChannel.MapMode.READ_WRITE, offset + i * size, size).asIntBuffer();
+                }
+            } catch (IOException e) {
+                output.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Adds a record
+         * @param codes Code of each column
+         */
+        public void add(int[] codes) {
+            if (row == rows) {
+                throw new IllegalStateException("Too many records.");
+            }
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].put(row, codes[i]);
+            }
+            row++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+            if (row != rows) {
+                throw new IOException("Expected " + rows + " records, but " + row + " have been written.");
+            }
+        }
+    }
+
+    /** Identifies checkpoints */
+    private static final int MAGIC = 0x4C505546;
+
+    /**
+     * Returns a buffer for the given number of integers, backed by an array
+     * @param size
+     * @return
+     */
+    public static IntBuffer allocate(int size) {
+        return IntBuffer.allocate(size);
+    }
+
+    /**
+     * Encodes the given fields of the records
+     * @param header
+     * @param rows Records without the header
+     * @param fields
+     * @return
+     */
+    public static Columns encode(String[] header, List<String[]> rows, String... fields) {
+
+        // Encode
+        IntBuffer[] columns = new IntBuffer[fields.length];
+        String[][] values = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            int index = Arrays.asList(header).indexOf(fields[i]);
+            if (index < 0) {
+                throw new IllegalArgumentException("Missing field: " + fields[i]);
+            }
+            Dictionary dictionary = Dictionary.get(fields[i]);
+            columns[i] = allocate(rows.size());
+            for (int row = 0; row < rows.size(); row++) {
+                columns[i].put(row, dictionary.getCode(rows.get(row)[index]));
+            }
+
+            // Values of all codes used
+            values[i] = new String[dictionary.size()];
+            for (int code = 0; code < values[i].length; code++) {
+                values[i][code] = dictionary.getValue(code);
+            }
+        }
+
+        // Done
+        return new Columns(fields.clone(), values, rows.size(), columns);
+    }
+
+    /**
+     * Encodes the given fields of a handle directly. Values are encoded with dictionaries
+     * local to the columns, so that neither records are copied nor shared dictionaries
+     * are accessed.
+     * @param handle
+     * @param fields
+     * @return
+     */
+    public static Columns encode(DataHandle handle, String... fields) {
+
+        // Encode
+        int rows = handle.getNumRows();
+        IntBuffer[] columns = new IntBuffer[fields.length];
+        String[][] values = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            int index = handle.getColumnIndexOf(fields[i]);
+            if (index < 0) {
+                throw new IllegalArgumentException("Missing field: " + fields[i]);
+            }
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> codes = new ArrayList<>();
+            columns[i] = allocate(rows);
+            for (int row = 0; row < rows; row++) {
+                String value = handle.getValue(row, index);
+                Integer code = dictionary.get(value);
+                if (code == null) {
+                    code = codes.size();
+                    dictionary.put(value, code);
+                    codes.add(value);
+                }
+                columns[i].put(row, code);
+            }
+            values[i] = codes.toArray(new String[codes.size()]);
+        }
+
+        // Done
+        return new Columns(fields.clone(), values, rows, columns);
+    }
+
+    /**
+     * Maps a checkpoint into memory
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Columns map(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+
+            // Header
+            DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            long offset = header.readLong();
+            int rows = header.readInt();
+            String[] fields = new String[header.readInt()];
+            String[][] values = new String[fields.length][];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = header.readUTF();
+                values[i] = new String[header.readInt()];
+                for (int code = 0; code < values[i].length; code++) {
+                    values[i][code] = Dictionary.get(fields[i]).intern(header.readUTF());
+                }
+            }
+
+            // Columns, which remain valid after the channel has been closed
+            IntBuffer[] columns = new IntBuffer[fields.length];
+            long size = (long) rows * Integer.BYTES;
+            for (int i = 0; i < fields.length; i++) {
+                columns[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + i * size, size).asIntBuffer();
+            }
+            return new Columns(fields, values, rows, columns);
+        }
+    }
+
+    /** Fields */
+    private final String[]    fields;
+    /** Values of the codes of each column */
+    private final String[][]  values;
+    /** Number of records */
+    private final int         rows;
+    /** Codes */
+    private final IntBuffer[] columns;
+
+    /**
+     * Creates a new instance
+     * @param fields
+     * @param values
+     * @param rows
+     * @param columns
+     */
+    private Columns(String[] fields, String[][] values, int rows, IntBuffer[] columns) {
+        this.fields = fields;
+        this.values = values;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * Returns the code of a value
+     * @param column
+     * @param row
+     * @return
+     */
+    public int getCode(int column, int row) {
+        return columns[column].get(row);
+    }
+
+    /**
+     * Returns the field of a column
+     * @param column
+     * @return
+     */
+    public String getField(int column) {
+        return fields[column];
+    }
+
+    /**
+     * Returns the column of a field
+     * @param field
+     * @return
+     */
+    public int getIndex(String field) {
+        int index = Arrays.asList(fields).indexOf(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("Missing field: " + field);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of columns
+     * @return
+     */
+    public int getNumColumns() {
+        return fields.length;
+    }
+
+    /**
+     * Returns the number of records
+     * @return
+     */
+    public int getNumRows() {
+        return rows;
+    }
+
+    /**
+     * Returns a value
+     * @param column
+     * @param row
+     * @return
+     */
+    public String getValue(int column, int row) {
+        return values[column][getCode(column, row)];
+    }
+
+    /**
+     * Returns the values of the codes of a column
+     * @param column
+     * @return
+     */
+    public String[] getValues(int column) {
+        return values[column].clone();
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.io.CSVDataOutput;
+
+/**
+ * Difference between a release and the previous release. Releases are compared as
+ * multisets of rows with a hash join, so that the previous release plus the added
+ * rows minus the removed rows equals the current release.
+ * @author Fabian Prasser
+ */
+public class Delta {
+
+    /** Number of rows after which progress is reported */
+    private static final int     PROGRESS_ROWS = 10000;
+
+    /** Header */
+    private final String[]       header;
+    /** Rows added */
+    private final List<String[]> added   = new ArrayList<>();
+    /** Rows removed */
+    private final List<String[]> removed = new ArrayList<>();
+    /** Base */
+    private final File           base;
+    /** Base */
+    private final String         baseChecksum;
+    /** Base */
+    private final int            baseRecords;
+    /** Records in the current release */
+    private int                  records = 0;
+
+    /**
+     * Creates the difference between the previous and the current release
+     * @param previous
+     * @param current
+     * @param progress
+     * @throws IOException
+     */
+    public Delta(File previous, Data current, Progress progress) throws IOException {
+
+        // Parse previous release
+        Parser parser = new Parser(previous, ';');
+        List<String[]> rows = parser.parse(() -> row -> row.clone(), progress);
+        Iterator<String[]> iter = current.getHandle().iterator();
+        this.header = iter.next();
+        if (!Arrays.equals(parser.getHeader(), header)) {
+            throw new IllegalArgumentException("The previous release has a different structure.");
+        }
+        this.base = previous;
+        this.baseChecksum = getChecksum(previous);
+        this.baseRecords = rows.size();
+
+        // Build
+        progress.begin("Delta", current.getHandle().getNumRows());
+        Map<List<String>, Integer> counts = new HashMap<>();
+        for (String[] row : rows) {
+            counts.merge(Arrays.asList(row), 1, Integer::sum);
+        }
+
+        // Probe
+        while (iter.hasNext()) {
+            String[] row = iter.next();
+            List<String> key = Arrays.asList(row);
+            Integer count = counts.get(key);
+            if (count == null) {
+                added.add(row);
+            } else if (count == 1) {
+                counts.remove(key);
+            } else {
+                counts.put(key, count - 1);
+            }
+            if (++records % PROGRESS_ROWS == 0) {
+                progress.worked(PROGRESS_ROWS);
+            }
+        }
+
+        // Remaining rows have been removed, in the order of the previous release
+        for (String[] row : rows) {
+            List<String> key = Arrays.asList(row);
+            Integer count = counts.get(key);
+            if (count != null) {
+                removed.add(row);
+                if (count == 1) {
+                    counts.remove(key);
+                } else {
+                    counts.put(key, count - 1);
+                }
+            }
+        }
+        progress.end();
+    }
+
+    /**
+     * Returns the number of rows added
+     * @return
+     */
+    public int getNumberOfAddedRecords() {
+        return added.size();
+    }
+
+    /**
+     * Returns the number of rows removed
+     * @return
+     */
+    public int getNumberOfRemovedRecords() {
+        return removed.size();
+    }
+
+    /**
+     * Writes the rows added, the rows removed and the manifest
+     * @param added
+     * @param removed
+     * @param manifest
+     * @throws IOException
+     */
+    public void write(File added, File removed, File manifest) throws IOException {
+
+        // Rows
+        write(added, this.added);
+        write(removed, this.removed);
+
+        // Manifest
+        String version = Delta.class.getPackage().getImplementationVersion();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(manifest))) {
+            writer.write("version=" + (version == null ? "unknown" : version) + "\n");
+            writer.write("created=" + Instant.now() + "\n");
+            writer.write("base.file=" + base.getName() + "\n");
+            writer.write("base.sha256=" + baseChecksum + "\n");
+            writer.write("base.records=" + baseRecords + "\n");
+            writer.write("records=" + records + "\n");
+            writer.write("added=" + this.added.size() + "\n");
+            writer.write("removed=" + this.removed.size() + "\n");
+        }
+    }
+
+    /**
+     * Converts to string
+     */
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Delta\n");
+        builder.append("-----\n");
+        builder.append("- Base: ").append(base.getName()).append(" (SHA-256: ").append(baseChecksum).append(")\n");
+        builder.append("- Records in base: ").append(baseRecords).append("\n");
+        builder.append("- Records added: ").append(added.size()).append("\n");
+        builder.append("- Records removed: ").append(removed.size()).append("\n");
+        return builder.toString();
+    }
+
+    /**
+     * Writes the header and the given rows
+     * @param file
+     * @param rows
+     * @throws IOException
+     */
+    private void write(File file, List<String[]> rows) throws IOException {
+        List<String[]> output = new ArrayList<>();
+        output.add(header);
+        output.addAll(rows);
+        new CSVDataOutput(file, ';').write(output.iterator());
+    }
+
+    /**
+     * Returns the SHA-256 checksum of a file
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static String getChecksum(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte value : digest.digest()) {
+            builder.append(String.format("%02x", value));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of canonical values for a field. The pool is populated with the values
+ * defined by the transformation rules and grows with values seen in the data.
+ * Lookups of known values don't block. Pools are cleared when a new input is loaded,
+ * so that they don't grow over several runs in the same JVM.
+ * @author Fabian Prasser
+ */
+public class Dictionary {
+
+    /** Dictionaries per field */
+    private static final Map<String, Dictionary> DICTIONARIES = new ConcurrentHashMap<>();
+
+    /**
+     * Removes all dictionaries. Codes obtained before are not valid for values added afterwards.
+     */
+    public static void clear() {
+        DICTIONARIES.clear();
+    }
+
+    /**
+     * Returns the dictionary for the given field
+     * @param field
+     * @return
+     */
+    public static Dictionary get(String field) {
+        return DICTIONARIES.computeIfAbsent(field, Dictionary::new);
+    }
+
+    /** Canonical values, replaced when growing */
+    private volatile String[]          values = new String[16];
+    /** Number of values */
+    private volatile int               size   = 0;
+    /** Codes of canonical values */
+    private final Map<String, Integer> codes  = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance
+     * @param field
+     */
+    private Dictionary(String field) {
+        for (String value : Anon.getDomain(field)) {
+            getCode(value);
+        }
+        getCode(IO.VALUE_NA);
+        getCode(IO.VALUE_UNKNOWN_MISSING);
+    }
+
+    /**
+     * Returns the code of the given value, adds it if needed
+     * @param value
+     * @return
+     */
+    public int getCode(String value) {
+        Integer code = codes.get(value);
+        return code != null ? code : add(value);
+    }
+
+    /**
+     * Returns the value for the given code
+     * @param code
+     * @return
+     */
+    public String getValue(int code) {
+        if (code >= size) {
+            throw new IndexOutOfBoundsException("Unknown code: " + code);
+        }
+        return values[code];
+    }
+
+    /**
+     * Returns the canonical instance of the given value
+     * @param value
+     * @return
+     */
+    public String intern(String value) {
+        return getValue(getCode(value));
+    }
+
+    /**
+     * Returns the number of values
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a value. Values are published before their codes, so that each code
+     * obtained without locking refers to a valid value.
+     * @param value
+     * @return
+     */
+    private synchronized int add(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        size = size + 1;
+        codes.put(value, size - 1);
+        return size - 1;
+    }
+}
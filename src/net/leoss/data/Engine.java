@@ -0,0 +1,608 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.deidentifier.arx.AttributeType.Hierarchy;
+
+/**
+ * Evaluates privacy models on equivalence classes. Records are only suppressed and
+ * never generalized, so that each class is either released or suppressed as a whole,
+ * depending only on its size and its distributions of sensitive values. The overall
+ * distributions required by t-closeness are passed explicitly, so that classes can be
+ * evaluated on partitions of the data. Classes are computed from encoded columns and
+ * stored in buffers backed by arrays, in which they are evaluated in one pass.
+ * @author Fabian Prasser
+ */
+public class Engine {
+
+    /**
+     * How the privacy models of the second stage are enforced
+     * @author Fabian Prasser
+     */
+    public static enum Mode {
+        /** With this engine */
+        NATIVE,
+        /** With ARX */
+        ARX,
+        /** With both, checking that the results are identical */
+        CHECK
+    }
+
+    /**
+     * Equivalence classes of a dataset, which are stored in buffers backed by arrays. A
+     * table refers to the columns it has been created from.
+     * @author Fabian Prasser
+     */
+    public class Table {
+
+        /** Encoded records */
+        private final Columns     columns;
+        /** Columns of the quasi-identifiers */
+        private final int[]       quasiIdentifiers;
+        /** Number of classes */
+        private final int         size;
+        /** Number of leaves of each sensitive attribute */
+        private final int[]       leaves;
+        /** Class of each record */
+        private final IntBuffer   classes;
+        /** Size of each class */
+        private final IntBuffer   sizes;
+        /** First record of each class */
+        private final IntBuffer   representatives;
+        /** Frequencies of the leaves of each sensitive attribute, per class */
+        private final IntBuffer[] frequencies;
+
+        /**
+         * Creates a new instance
+         * @param columns
+         */
+        private Table(Columns columns) {
+
+            // Prepare
+            this.columns = columns;
+            int rows = columns.getNumRows();
+            this.quasiIdentifiers = new int[Engine.this.quasiIdentifiers.length];
+            for (int i = 0; i < quasiIdentifiers.length; i++) {
+                quasiIdentifiers[i] = columns.getIndex(Engine.this.quasiIdentifiers[i]);
+            }
+            int[] sensitive = new int[Engine.this.sensitive.size()];
+            int[][] leafOfCode = new int[sensitive.length][];
+            this.leaves = new int[sensitive.length];
+            for (int i = 0; i < sensitive.length; i++) {
+                sensitive[i] = columns.getIndex(Engine.this.sensitive.get(i));
+                leafOfCode[i] = trees.get(i).getLeaves(columns.getValues(sensitive[i]));
+                leaves[i] = trees.get(i).leaves.size();
+            }
+
+            // Pack the quasi-identifiers into keys, which are mapped to dense identifiers of classes.
+            // Tables are addressed directly by keys, unless keys are too large.
+            Keys keys = new Keys(columns, Engine.this.quasiIdentifiers);
+            int[] direct = keys.getCapacity() < 0 ? null : new int[keys.getCapacity()];
+            Index index = direct == null ? new Index() : null;
+            this.classes = Columns.allocate(rows);
+            int size = 0;
+            for (int row = 0; row < rows; row++) {
+                long key = keys.getKey(columns, row);
+                int clazz;
+                if (direct != null) {
+                    clazz = direct[(int) key] - 1;
+                    if (clazz < 0) {
+                        clazz = size++;
+                        direct[(int) key] = size;
+                    }
+                } else {
+                    clazz = index.get(key);
+                    size = index.size();
+                }
+                classes.put(row, clazz);
+            }
+            this.size = size;
+
+            // Sizes and frequencies
+            this.sizes = Columns.allocate(size);
+            this.representatives = Columns.allocate(size);
+            this.frequencies = new IntBuffer[sensitive.length];
+            for (int i = 0; i < sensitive.length; i++) {
+                frequencies[i] = Columns.allocate(size * leaves[i]);
+            }
+            for (int row = rows - 1; row >= 0; row--) {
+                int clazz = classes.get(row);
+                sizes.put(clazz, sizes.get(clazz) + 1);
+                representatives.put(clazz, row);
+                for (int i = 0; i < sensitive.length; i++) {
+                    int leaf = leafOfCode[i][columns.getCode(sensitive[i], row)];
+                    if (leaf < 0) {
+                        throw new IllegalArgumentException("Value not covered by transformation rule: " + columns.getValue(sensitive[i], row));
+                    }
+                    int offset = clazz * leaves[i] + leaf;
+                    frequencies[i].put(offset, frequencies[i].get(offset) + 1);
+                }
+            }
+        }
+
+        /**
+         * Returns the class of a record
+         * @param row
+         * @return
+         */
+        public int getClass(int row) {
+            return classes.get(row);
+        }
+
+        /**
+         * Returns the overall frequencies of sensitive values
+         * @return
+         */
+        public long[][] getDistributions() {
+            long[][] result = new long[frequencies.length][];
+            for (int i = 0; i < frequencies.length; i++) {
+                result[i] = new long[leaves[i]];
+                for (int j = 0; j < size * leaves[i]; j++) {
+                    result[i][j % leaves[i]] += frequencies[i].get(j);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns a key for a class, which equals the key returned by Engine.getKey() for its records
+         * @param clazz
+         * @return
+         */
+        public String getKey(int clazz) {
+            StringBuilder builder = new StringBuilder();
+            for (int column : quasiIdentifiers) {
+                builder.append(columns.getValue(column, representatives.get(clazz))).append('\u0000');
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Returns the number of classes
+         * @return
+         */
+        public int getNumberOfClasses() {
+            return size;
+        }
+
+        /**
+         * Returns the size of a class
+         * @param clazz
+         * @return
+         */
+        public int getSize(int clazz) {
+            return sizes.get(clazz);
+        }
+    }
+
+    /**
+     * Maps keys to dense identifiers with open addressing, for keys too large to address tables directly
+     * @author Fabian Prasser
+     */
+    private static class Index {
+
+        /** Keys */
+        private long[] keys   = new long[1024];
+        /** Identifiers, 0 marks free slots */
+        private int[]  values = new int[1024];
+        /** Number of keys */
+        private int    size   = 0;
+
+        /**
+         * Returns the identifier of a key, which is assigned if the key is new
+         * @param key
+         * @return
+         */
+        private int get(long key) {
+            int mask = keys.length - 1;
+            int slot = Keys.hash(key) & mask;
+            while (values[slot] != 0) {
+                if (keys[slot] == key) {
+                    return values[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = ++size;
+            if (size * 2 > keys.length) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        /**
+         * Doubles the capacity
+         */
+        private void grow() {
+            long[] keys = this.keys;
+            int[] values = this.values;
+            this.keys = new long[keys.length * 2];
+            this.values = new int[values.length * 2];
+            int mask = this.keys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != 0) {
+                    int slot = Keys.hash(keys[i]) & mask;
+                    while (this.values[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.keys[slot] = keys[i];
+                    this.values[slot] = values[i];
+                }
+            }
+        }
+
+        /**
+         * Returns the number of keys
+         * @return
+         */
+        private int size() {
+            return size;
+        }
+    }
+
+    /**
+     * A transformation rule of a sensitive attribute as a tree
+     * @author Fabian Prasser
+     */
+    private static class Tree {
+
+        /** Indices of leaves */
+        private final Map<String, Integer> leaves = new HashMap<>();
+        /** Parent of each node per level */
+        private final int[][]              parents;
+        /** Number of nodes per level */
+        private final int[]                nodes;
+
+        /**
+         * Creates a new instance
+         * @param hierarchy
+         */
+        private Tree(Hierarchy hierarchy) {
+
+            // Nodes per level
+            String[][] rows = hierarchy.getHierarchy();
+            int levels = rows[0].length;
+            List<Map<String, Integer>> indices = new ArrayList<>();
+            for (int level = 0; level < levels; level++) {
+                Map<String, Integer> index = new HashMap<>();
+                for (String[] row : rows) {
+                    index.putIfAbsent(row[level], index.size());
+                }
+                indices.add(index);
+            }
+            leaves.putAll(indices.get(0));
+
+            // Parents
+            this.nodes = new int[levels];
+            this.parents = new int[levels - 1][];
+            for (int level = 0; level < levels; level++) {
+                nodes[level] = indices.get(level).size();
+            }
+            for (int level = 0; level < levels - 1; level++) {
+                parents[level] = new int[nodes[level]];
+                for (String[] row : rows) {
+                    parents[level][indices.get(level).get(row[level])] = indices.get(level + 1).get(row[level + 1]);
+                }
+            }
+        }
+
+        /**
+         * Returns the hierarchical earth mover's distance between the distribution in a class
+         * and the overall distribution. Costs of nodes are weighted with their height relative
+         * to the height of the tree.
+         * @param frequencies Frequencies of all classes
+         * @param offset Offset of the class
+         * @param size Size of the class
+         * @param distribution Overall relative frequencies
+         * @param buffer Buffer with one array per level
+         * @return
+         */
+        private double getDistance(IntBuffer frequencies, int offset, int size, double[] distribution, double[][] buffer) {
+
+            // Extra on leaves
+            double[] extra = buffer[0];
+            for (int i = 0; i < extra.length; i++) {
+                extra[i] = (double) frequencies.get(offset + i) / (double) size - distribution[i];
+            }
+
+            // Move extra up the tree
+            double distance = 0d;
+            int height = parents.length;
+            for (int level = 0; level < height; level++) {
+                double[] next = buffer[level + 1];
+                double[] positive = buffer[height + level + 1];
+                double[] negative = buffer[2 * height + level + 1];
+                Arrays.fill(next, 0d);
+                Arrays.fill(positive, 0d);
+                Arrays.fill(negative, 0d);
+                for (int node = 0; node < extra.length; node++) {
+                    int parent = parents[level][node];
+                    if (extra[node] > 0d) {
+                        positive[parent] += extra[node];
+                    } else {
+                        negative[parent] -= extra[node];
+                    }
+                    next[parent] += extra[node];
+                }
+                double weight = (double) (level + 1) / (double) height;
+                for (int node = 0; node < next.length; node++) {
+                    distance += weight * Math.min(positive[node], negative[node]);
+                }
+                extra = next;
+            }
+            return distance;
+        }
+
+        /**
+         * Returns a buffer for computing distances
+         * @return
+         */
+        private double[][] getBuffer() {
+            int height = parents.length;
+            double[][] buffer = new double[3 * height + 1][];
+            buffer[0] = new double[nodes[0]];
+            for (int level = 1; level <= height; level++) {
+                buffer[level] = new double[nodes[level]];
+                buffer[height + level] = new double[nodes[level]];
+                buffer[2 * height + level] = new double[nodes[level]];
+            }
+            return buffer;
+        }
+
+        /**
+         * Returns the index of the leaf of each value, -1 for values not covered
+         * @param values
+         * @return
+         */
+        private int[] getLeaves(String[] values) {
+            int[] result = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = leaves.getOrDefault(values[i], -1);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns a key for the values of the given columns
+     * @param row
+     * @param columns
+     * @return
+     */
+    public static String getKey(String[] row, int[] columns) {
+        StringBuilder builder = new StringBuilder();
+        for (int column : columns) {
+            builder.append(row[column]).append('\u0000');
+        }
+        return builder.toString();
+    }
+
+    /** Mode */
+    private static Mode        mode         = Mode.NATIVE;
+
+    /**
+     * Returns the mode
+     * @return
+     */
+    public static synchronized Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the mode
+     * @param mode
+     */
+    public static synchronized void setMode(Mode mode) {
+        Engine.mode = mode;
+    }
+
+    /** Quasi-identifiers */
+    private final String[]     quasiIdentifiers;
+    /** Sensitive attributes */
+    private final List<String> sensitive    = new ArrayList<>();
+    /** Transformation rules of sensitive attributes */
+    private final List<Tree>   trees        = new ArrayList<>();
+    /** Descriptions of the models */
+    private final List<String> descriptions = new ArrayList<>();
+    /** Parameter k of each model, 0 for t-closeness */
+    private final List<Integer> ks          = new ArrayList<>();
+    /** Parameter t of each model */
+    private final List<Double> ts           = new ArrayList<>();
+    /** Sensitive attribute of each model, -1 for k-anonymity */
+    private final List<Integer> attributes  = new ArrayList<>();
+
+    /**
+     * Creates a new instance
+     * @param quasiIdentifiers
+     */
+    public Engine(String... quasiIdentifiers) {
+        this.quasiIdentifiers = quasiIdentifiers;
+    }
+
+    /**
+     * Adds k-anonymity
+     * @param k
+     * @param description
+     */
+    public void addKAnonymity(int k, String description) {
+        add(k, 0d, -1, description);
+    }
+
+    /**
+     * Adds t-closeness with hierarchical ground distance
+     * @param attribute
+     * @param hierarchy
+     * @param t
+     * @param description
+     */
+    public void addTCloseness(String attribute, Hierarchy hierarchy, double t, String description) {
+        int index = sensitive.indexOf(attribute);
+        if (index < 0) {
+            index = sensitive.size();
+            sensitive.add(attribute);
+            trees.add(new Tree(hierarchy));
+        }
+        add(0, t, index, description);
+    }
+
+    /**
+     * Returns the equivalence classes of the given records
+     * @param columns Encoded quasi-identifiers and sensitive attributes
+     * @return
+     */
+    public Table createTable(Columns columns) {
+        return new Table(columns);
+    }
+
+    /**
+     * Evaluates all models on all classes in one pass. Returns a bit mask of the models
+     * violated by each class.
+     * @param table
+     * @param distributions Overall frequencies of sensitive values
+     * @return
+     */
+    public int[] evaluate(Table table, long[][] distributions) {
+
+        // Prepare
+        int models = descriptions.size();
+        int[] k = new int[models];
+        double[] t = new double[models];
+        int[] attribute = new int[models];
+        for (int model = 0; model < models; model++) {
+            k[model] = ks.get(model);
+            t[model] = ts.get(model);
+            attribute[model] = attributes.get(model);
+        }
+        double[][] relative = new double[distributions.length][];
+        double[][][] buffers = new double[distributions.length][][];
+        for (int i = 0; i < distributions.length; i++) {
+            long total = 0L;
+            for (long frequency : distributions[i]) {
+                total += frequency;
+            }
+            relative[i] = new double[distributions[i].length];
+            for (int j = 0; j < distributions[i].length; j++) {
+                relative[i][j] = (double) distributions[i][j] / (double) total;
+            }
+            buffers[i] = trees.get(i).getBuffer();
+        }
+
+        // Evaluate
+        int[] result = new int[table.size];
+        for (int clazz = 0; clazz < table.size; clazz++) {
+            int size = table.sizes.get(clazz);
+            int mask = 0;
+            for (int model = 0; model < models; model++) {
+                int index = attribute[model];
+                boolean violated;
+                if (index < 0) {
+                    violated = size < k[model];
+                } else {
+                    int leaves = relative[index].length;
+                    violated = trees.get(index).getDistance(table.frequencies[index], clazz * leaves, size, relative[index], buffers[index]) > t[model];
+                }
+                if (violated) {
+                    mask |= 1 << model;
+                }
+            }
+            result[clazz] = mask;
+        }
+        return result;
+    }
+
+    /**
+     * Returns all attributes required for evaluating the models
+     * @return
+     */
+    public String[] getAttributes() {
+        List<String> result = new ArrayList<>(Arrays.asList(quasiIdentifiers));
+        result.addAll(sensitive);
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns the overall frequencies of sensitive values, counted without computing classes
+     * @param columns Encoded sensitive attributes
+     * @return
+     */
+    public long[][] getDistributions(Columns columns) {
+        long[][] result = new long[sensitive.size()][];
+        for (int i = 0; i < result.length; i++) {
+            int column = columns.getIndex(sensitive.get(i));
+            int[] leafOfCode = trees.get(i).getLeaves(columns.getValues(column));
+            result[i] = new long[trees.get(i).leaves.size()];
+            for (int row = 0; row < columns.getNumRows(); row++) {
+                int leaf = leafOfCode[columns.getCode(column, row)];
+                if (leaf < 0) {
+                    throw new IllegalArgumentException("Value not covered by transformation rule: " + columns.getValue(column, row));
+                }
+                result[i][leaf]++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the description of a model
+     * @param model
+     * @return
+     */
+    public String getDescription(int model) {
+        return descriptions.get(model);
+    }
+
+    /**
+     * Returns the number of models
+     * @return
+     */
+    public int getNumberOfModels() {
+        return descriptions.size();
+    }
+
+    /**
+     * Returns the quasi-identifiers
+     * @return
+     */
+    public String[] getQuasiIdentifiers() {
+        return quasiIdentifiers.clone();
+    }
+
+    /**
+     * Adds a model
+     * @param k
+     * @param t
+     * @param attribute
+     * @param description
+     */
+    private void add(int k, double t, int attribute, String description) {
+        if (descriptions.size() == Integer.SIZE - 1) {
+            throw new IllegalStateException("Too many privacy models.");
+        }
+        ks.add(k);
+        ts.add(t);
+        attributes.add(attribute);
+        descriptions.add(description);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+/**
+ * Events for the Java Flight Recorder. Events are only committed while a recording
+ * is active, so that they have almost no overhead otherwise.
+ * @author Fabian Prasser
+ */
+public class Events {
+
+    /**
+     * Loading the input
+     * @author Fabian Prasser
+     */
+    @Name("net.leoss.data.Load")
+    @Label("Load")
+    @Category("LEOSS")
+    @Description("Loading and converting the input")
+    public static class Load extends Event {
+
+        /** File */
+        @Label("File")
+        public String file;
+        /** Records */
+        @Label("Records")
+        public int    records;
+    }
+
+    /**
+     * Parsing and converting a chunk of the input
+     * @author Fabian Prasser
+     */
+    @Name("net.leoss.data.Convert")
+    @Label("Convert")
+    @Category("LEOSS")
+    @Description("Parsing and converting a chunk of the input")
+    public static class Convert extends Event {
+
+        /** Offset */
+        @Label("Offset")
+        public long offset;
+        /** Records */
+        @Label("Records")
+        public int  records;
+    }
+
+    /**
+     * A run of ARX
+     * @author Fabian Prasser
+     */
+    @Name("net.leoss.data.Anonymization")
+    @Label("Anonymization")
+    @Category("LEOSS")
+    @Description("A run of ARX, or a result taken from the cache")
+    public static class Anonymization extends Event {
+
+        /** Privacy models */
+        @Label("Model")
+        public String  model;
+        /** Records */
+        @Label("Input records")
+        public int     records;
+        /** Suppressed records */
+        @Label("Suppressed records")
+        public int     suppressed;
+        /** Whether the result has been taken from the cache */
+        @Label("Cached")
+        public boolean cached;
+    }
+
+    /**
+     * Copying data
+     * @author Fabian Prasser
+     */
+    @Name("net.leoss.data.Copy")
+    @Label("Copy")
+    @Category("LEOSS")
+    @Description("Copying the records of a handle")
+    public static class Copy extends Event {
+
+        /** Records */
+        @Label("Records")
+        public int records;
+    }
+
+    /**
+     * Computing risks
+     * @author Fabian Prasser
+     */
+    @Name("net.leoss.data.Risk")
+    @Label("Risk")
+    @Category("LEOSS")
+    @Description("Computing re-identification risks")
+    public static class Risk extends Event {
+
+        /** Records */
+        @Label("Records")
+        public int records;
+    }
+
+    /**
+     * Writing the output
+     * @author Fabian Prasser
+     */
+    @Name("net.leoss.data.Write")
+    @Label("Write")
+    @Category("LEOSS")
+    @Description("Writing the output")
+    public static class Write extends Event {
+
+        /** File */
+        @Label("File")
+        public String file;
+        /** Records */
+        @Label("Records")
+        public int    records;
+    }
+
+    /**
+     * Starts a recording with the default settings of the JDK, which is written to
+     * the given file when it is stopped
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Recording start(File file) throws IOException {
+        try {
+            Recording recording = new Recording(Configuration.getConfiguration("default"));
+            recording.setName("LEOSS");
+            recording.setToDisk(true);
+            recording.setDestination(file.toPath());
+            recording.start();
+            return recording;
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Explores the effects of combinations of privacy models. The records suppressed by
+ * each model of the first and second stage are computed once and stored as bitmaps,
+ * so that the records released by any combination of models are obtained by bitmap
+ * algebra. Models of the first stage are applied one after the other and models of the
+ * second stage are evaluated on the output of the first stage, as by the anonymization
+ * process, so that the figures of the release are exact as long as all models of the first
+ * stage are included. Excluding a model of the first stage would change the records seen
+ * by the models evaluated after it, so that figures are approximations in this case.
+ * @author Fabian Prasser
+ */
+public class Explorer {
+
+    /** Number of records */
+    private final int          records;
+    /** Class of each record */
+    private final int[]        classes;
+    /** Number of classes */
+    private final int          size;
+    /** Descriptions of the models */
+    private final List<String> models     = new ArrayList<>();
+    /** Records suppressed by each model */
+    private final List<BitSet> suppressed = new ArrayList<>();
+    /** Models included */
+    private final BitSet       included   = new BitSet();
+    /** Models on whose output other models have been evaluated */
+    private final BitSet       preceding  = new BitSet();
+
+    /**
+     * Creates a new instance
+     * @param classes Class of each record
+     * @param size Number of classes
+     */
+    public Explorer(int[] classes, int size) {
+        this.records = classes.length;
+        this.classes = classes;
+        this.size = size;
+    }
+
+    /**
+     * Adds a model, which is included
+     * @param description
+     * @param suppressed Records suppressed by the model
+     * @param preceding Whether other models have been evaluated on the output of the model
+     */
+    public void addModel(String description, BitSet suppressed, boolean preceding) {
+        this.included.set(models.size());
+        this.preceding.set(models.size(), preceding);
+        this.models.add(description);
+        this.suppressed.add(suppressed);
+    }
+
+    /**
+     * Excludes models
+     * @param models
+     */
+    public void exclude(int... models) {
+        for (int model : models) {
+            check(model);
+        }
+        for (int model : models) {
+            included.clear(model);
+        }
+    }
+
+    /**
+     * Includes models
+     * @param models
+     */
+    public void include(int... models) {
+        for (int model : models) {
+            check(model);
+        }
+        for (int model : models) {
+            included.set(model);
+        }
+    }
+
+    /**
+     * Reads commands and prints results until the input ends or the user quits
+     * @param input
+     * @param output
+     * @throws IOException
+     */
+    public void run(BufferedReader input, PrintStream output) throws IOException {
+        output.print(this);
+        output.println("Type \"help\" for a list of commands.");
+        output.print("> ");
+        output.flush();
+        for (String line = input.readLine(); line != null; line = input.readLine()) {
+            String[] tokens = line.trim().split("\\s+");
+            try {
+                switch (tokens[0].toLowerCase()) {
+                case "":
+                    break;
+                case "quit":
+                case "exit":
+                    return;
+                case "help":
+                    output.println("- show                     Prints the models and the records released");
+                    output.println("- include [model|all] ...  Includes the given models");
+                    output.println("- exclude [model|all] ...  Excludes the given models");
+                    output.println("- quit                     Exits");
+                    break;
+                case "show":
+                    output.print(this);
+                    break;
+                case "include":
+                    include(parse(tokens));
+                    output.print(this);
+                    break;
+                case "exclude":
+                    exclude(parse(tokens));
+                    output.print(this);
+                    break;
+                default:
+                    output.println("Unknown command: " + tokens[0]);
+                }
+            } catch (IllegalArgumentException e) {
+                output.println(e.getMessage());
+            }
+            output.print("> ");
+            output.flush();
+        }
+    }
+
+    /**
+     * Converts to string
+     */
+    @Override
+    public String toString() {
+
+        // Records suppressed by the models included
+        BitSet union = getUnion(-1);
+        int released = records - union.cardinality();
+
+        // Models
+        StringBuilder builder = new StringBuilder();
+        builder.append("Explorer\n");
+        builder.append("--------\n");
+        for (int model = 0; model < models.size(); model++) {
+            BitSet bitmap = suppressed.get(model);
+            builder.append("- Model ").append(model + 1).append(included.get(model) ? " [included]: " : " [excluded]: ").append(models.get(model));
+            builder.append(", records suppressed alone: ").append(bitmap.cardinality());
+            if (included.get(model)) {
+                BitSet others = getUnion(model);
+                others.flip(0, records);
+                others.and(bitmap);
+                builder.append(", records additionally released if excluded: ").append(others.cardinality());
+            } else {
+                BitSet additional = (BitSet) bitmap.clone();
+                additional.andNot(union);
+                builder.append(", records additionally suppressed if included: ").append(additional.cardinality());
+            }
+            builder.append("\n");
+        }
+
+        // Classes released
+        int[] sizes = new int[size];
+        for (int row = union.nextClearBit(0); row < records; row = union.nextClearBit(row + 1)) {
+            sizes[classes[row]]++;
+        }
+        int count = 0;
+        int smallest = Integer.MAX_VALUE;
+        int largest = 0;
+        for (int clazz = 0; clazz < size; clazz++) {
+            if (sizes[clazz] > 0) {
+                count++;
+                smallest = Math.min(smallest, sizes[clazz]);
+                largest = Math.max(largest, sizes[clazz]);
+            }
+        }
+
+        // Summary
+        BitSet excluded = (BitSet) preceding.clone();
+        excluded.andNot(included);
+        builder.append("- Figures: ").append(excluded.isEmpty() ? "exact" : "approximate, as models of the first stage are excluded").append("\n");
+        builder.append("- Records: ").append(records).append(", released: ").append(released).append(", suppressed: ").append(records - released).append("\n");
+        builder.append("- Highest re-identification risk: ").append(count == 0 ? 0d : 1d / (double) smallest).append("\n");
+        builder.append("- Lowest re-identification risk: ").append(count == 0 ? 0d : 1d / (double) largest).append("\n");
+        builder.append("- Average re-identification risk: ").append(count == 0 ? 0d : 1d / ((double) released / (double) count)).append("\n");
+        return builder.toString();
+    }
+
+    /**
+     * Checks a model
+     * @param model
+     */
+    private void check(int model) {
+        if (model < 0 || model >= models.size()) {
+            throw new IllegalArgumentException("Unknown model: " + (model + 1));
+        }
+    }
+
+    /**
+     * Returns the records suppressed by the models included
+     * @param ignore Model to ignore, -1 for none
+     * @return
+     */
+    private BitSet getUnion(int ignore) {
+        BitSet result = new BitSet(records);
+        for (int model = included.nextSetBit(0); model >= 0; model = included.nextSetBit(model + 1)) {
+            if (model != ignore) {
+                result.or(suppressed.get(model));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses the models of a command, which are numbered starting with one
+     * @param tokens
+     * @return
+     */
+    private int[] parse(String[] tokens) {
+        if (tokens.length == 2 && tokens[1].equalsIgnoreCase("all")) {
+            int[] result = new int[models.size()];
+            for (int model = 0; model < result.length; model++) {
+                result[model] = model;
+            }
+            return result;
+        }
+        int[] result = new int[tokens.length - 1];
+        for (int i = 1; i < tokens.length; i++) {
+            try {
+                result[i - 1] = Integer.parseInt(tokens[i]) - 1;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a model: " + tokens[i]);
+            }
+        }
+        return result;
+    }
+}
@@ -19,14 +19,15 @@ package net.leoss.data;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 import org.deidentifier.arx.Data;
-import org.deidentifier.arx.DataHandle;
-import org.deidentifier.arx.DataSource;
-import org.deidentifier.arx.DataType;
 import org.deidentifier.arx.io.CSVDataOutput;
 
 /**
@@ -77,118 +78,197 @@ public class IO {
     /** Legacy field */
     public static final String LEGACY_FIELD_DIAGNOSIS_MONTH_YEAR        = "Month.year.first.diagnosis";
 
+    /** Number of rows after which progress is reported */
+    private static final int      PROGRESS_ROWS = 10000;
+
+    /** Columns of the input file */
+    private static final String[] INPUT         = new String[] {
+        FIELD_AGE,
+        FIELD_GENDER,
+        LEGACY_FIELD_DIAGNOSIS_MONTH_YEAR,
+        FIELD_PHASE_UNCOMPLICATED,
+        FIELD_PHASE_COMPLICATED,
+        FIELD_PHASE_CRITICAL,
+        FIELD_PHASE_RECOVERY,
+        FIELD_LAST_KNOWN_STATUS,
+        FIELD_PHASE_COMPLICATED_VASSOPRESSORS,
+        FIELD_PHASE_CRITICIAL_VASSOPRESSORS,
+        FIELD_PHASE_CRITICIAL_VENTILATION,
+        FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION,
+        FIELD_PHASE_COMPLICATED_SUPERINFECTION,
+        FIELD_PHASE_CRITICIAL_SUPERINFECTION,
+        FIELD_PHASE_RECOVERY_SYMPTOMS
+    };
+
+    /** Fields of the converted data */
+    private static final String[] HEADER        = new String[] {
+        FIELD_AGE,
+        FIELD_GENDER,
+        FIELD_DIAGNOSIS_MONTH,
+        FIELD_DIAGNOSIS_YEAR,
+        FIELD_PHASE_UNCOMPLICATED,
+        FIELD_PHASE_COMPLICATED,
+        FIELD_PHASE_CRITICAL,
+        FIELD_PHASE_RECOVERY,
+        FIELD_PHASE_COMPLICATED_VASSOPRESSORS,
+        FIELD_PHASE_CRITICIAL_VASSOPRESSORS,
+        FIELD_PHASE_CRITICIAL_VENTILATION,
+        FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION,
+        FIELD_PHASE_COMPLICATED_SUPERINFECTION,
+        FIELD_PHASE_CRITICIAL_SUPERINFECTION,
+        FIELD_PHASE_RECOVERY_SYMPTOMS,
+        FIELD_LAST_KNOWN_STATUS
+    };
+
     /**
-     * File loading
+     * File loading. Columns are identified by their position in the file.
      * @param inputFile
+     * @param progress
      * @return
      * @throws IOException 
      */
-    public static Data loadData(File inputFile) throws IOException {
+    public static Data loadData(File inputFile, Progress progress) throws IOException {
         
-        // Import process
-        DataSource sourceSpecification = DataSource.createCSVSource(inputFile, StandardCharsets.UTF_8, ';', true);
-        
-        // Clean columns
-        sourceSpecification.addColumn(0, FIELD_AGE, DataType.STRING);
-        sourceSpecification.addColumn(1, FIELD_GENDER, DataType.STRING);
-        sourceSpecification.addColumn(2, LEGACY_FIELD_DIAGNOSIS_MONTH_YEAR, DataType.STRING);
-        sourceSpecification.addColumn(3, FIELD_PHASE_UNCOMPLICATED, DataType.STRING);
-        sourceSpecification.addColumn(4, FIELD_PHASE_COMPLICATED, DataType.STRING);
-        sourceSpecification.addColumn(5, FIELD_PHASE_CRITICAL, DataType.STRING);
-        sourceSpecification.addColumn(6, FIELD_PHASE_RECOVERY, DataType.STRING);
-        sourceSpecification.addColumn(7, FIELD_LAST_KNOWN_STATUS, DataType.STRING);
-        sourceSpecification.addColumn(8, FIELD_PHASE_COMPLICATED_VASSOPRESSORS, DataType.STRING);
-        sourceSpecification.addColumn(9, FIELD_PHASE_CRITICIAL_VASSOPRESSORS, DataType.STRING);
-        sourceSpecification.addColumn(10, FIELD_PHASE_CRITICIAL_VENTILATION, DataType.STRING);
-        sourceSpecification.addColumn(11, FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION, DataType.STRING);
-        sourceSpecification.addColumn(12, FIELD_PHASE_COMPLICATED_SUPERINFECTION, DataType.STRING);
-        sourceSpecification.addColumn(13, FIELD_PHASE_CRITICIAL_SUPERINFECTION, DataType.STRING);
-        sourceSpecification.addColumn(14, FIELD_PHASE_RECOVERY_SYMPTOMS, DataType.STRING);
+        // Prepare, with dictionaries scoped to this input
+        Events.Load event = new Events.Load();
+        event.begin();
+        Dictionary.clear();
+        Parser parser = new Parser(inputFile, ';');
+        if (parser.getHeader().length < INPUT.length) {
+            throw new IOException("Expected " + INPUT.length + " columns, but found " + parser.getHeader().length);
+        }
         
-        // Load input file
-        DataHandle inputHandle = Data.create(sourceSpecification).getHandle();
+        // Parse, convert and validate, so that invalid extracts are rejected before any anonymization
+        Validation validation = new Validation(HEADER);
+        List<String[]> rows = parser.parse(() -> getConverter(validation), progress);
+        validation.check(rows);
+        List<String[]> dataset = new ArrayList<>();
+        dataset.add(HEADER.clone());
+        dataset.addAll(rows);
+        Data data = Data.create(dataset);
         
-        // Convert
-        return convert(inputHandle);
+        // Done
+        event.file = inputFile.getName();
+        event.records = dataset.size() - 1;
+        event.commit();
+        return data;
     }
     
     /**
      * Writes the data, shuffles rows
      * @param result 
      * @param output
+     * @param progress
      * @throws IOException 
      */
-    public static void writeOutput(Data result, File output) throws IOException {
+    public static void writeOutput(Data result, File output, final Progress progress) throws IOException {
+        
+        // Progress
+        Events.Write event = new Events.Write();
+        event.begin();
+        progress.begin("Writing", result.getHandle().getNumRows());
+        final Iterator<String[]> iterator = result.getHandle().iterator();
+        
+        // Write
         CSVDataOutput writer = new CSVDataOutput(output, ';');
-        writer.write(result.getHandle().iterator());
+        writer.write(new Iterator<String[]>() {
+            
+            /** Rows written since the last update */
+            private int rows = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                if (++rows == PROGRESS_ROWS) {
+                    progress.worked(rows);
+                    rows = 0;
+                }
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        progress.end();
+        event.file = output.getName();
+        event.records = result.getHandle().getNumRows();
+        event.commit();
     }
 
     /**
-     * Convert handle to iterator including cleanups
-     * @param handle
+     * Returns a converter from rows of the input file to rows of the dataset, including
+     * cleanups. Values are converted through the dictionaries, and each distinct raw value
+     * is converted and validated only once. Converters must not be used concurrently.
+     * @param validation Records values not covered by the transformation rules
      * @return
      */
-    private static Data convert(DataHandle handle) {
+    private static Function<String[], String[]> getConverter(Validation validation) {
 
-        // Result
-        List<String[]> dataset = new ArrayList<>();
-        
-        // Header
-        String[] header = new String[] {
-            FIELD_AGE,
-            FIELD_GENDER,
-            FIELD_DIAGNOSIS_MONTH,
-            FIELD_DIAGNOSIS_YEAR,
-            FIELD_PHASE_UNCOMPLICATED,
-            FIELD_PHASE_COMPLICATED,
-            FIELD_PHASE_CRITICAL,
-            FIELD_PHASE_RECOVERY,
-            FIELD_PHASE_COMPLICATED_VASSOPRESSORS,
-            FIELD_PHASE_CRITICIAL_VASSOPRESSORS,
-            FIELD_PHASE_CRITICIAL_VENTILATION,
-            FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION,
-            FIELD_PHASE_COMPLICATED_SUPERINFECTION,
-            FIELD_PHASE_CRITICIAL_SUPERINFECTION,
-            FIELD_PHASE_RECOVERY_SYMPTOMS,
-            FIELD_LAST_KNOWN_STATUS
-        };
-        
-        // Add header
-        dataset.add(header);
+        // Source columns
+        int[] columns = new int[HEADER.length];
+        for (int i = 0; i < HEADER.length; i++) {
+            String source = HEADER[i];
+            if (source.equals(FIELD_DIAGNOSIS_MONTH) || source.equals(FIELD_DIAGNOSIS_YEAR)) {
+                source = LEGACY_FIELD_DIAGNOSIS_MONTH_YEAR;
+            }
+            columns[i] = Arrays.asList(INPUT).indexOf(source);
+        }
+
+        // Canonical values, and valid and invalid values already converted
+        Dictionary[] dictionaries = new Dictionary[HEADER.length];
+        List<Map<String, String>> converted = new ArrayList<>();
+        List<Map<String, String>> invalid = new ArrayList<>();
+        for (int i = 0; i < HEADER.length; i++) {
+            dictionaries[i] = Dictionary.get(HEADER[i]);
+            converted.add(new HashMap<String, String>());
+            invalid.add(new HashMap<String, String>());
+        }
 
         // Convert rows
-        for (int rowNumber = 0; rowNumber < handle.getNumRows(); rowNumber++) {
-
-            // Initialize
-            String[] row = header.clone();
-
-            // For each column
-            for (int colNumber = 0; colNumber < handle.getNumColumns(); colNumber++) {
-
-                setValue(row, FIELD_AGE, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_AGE))));
-                setValue(row, FIELD_GENDER, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_GENDER))));
-                setValue(row, FIELD_DIAGNOSIS_MONTH, convert(convertDateToMonth(handle.getValue(rowNumber, handle.getColumnIndexOf(LEGACY_FIELD_DIAGNOSIS_MONTH_YEAR)))));
-                setValue(row, FIELD_DIAGNOSIS_YEAR, convert(convertDateToYear(handle.getValue(rowNumber, handle.getColumnIndexOf(LEGACY_FIELD_DIAGNOSIS_MONTH_YEAR)))));
-                setValue(row, FIELD_PHASE_UNCOMPLICATED, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_UNCOMPLICATED))));
-                setValue(row, FIELD_PHASE_COMPLICATED, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_COMPLICATED))));
-                setValue(row, FIELD_PHASE_CRITICAL, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_CRITICAL))));
-                setValue(row, FIELD_PHASE_RECOVERY, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_RECOVERY))));
-                setValue(row, FIELD_PHASE_COMPLICATED_VASSOPRESSORS, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_COMPLICATED_VASSOPRESSORS))));
-                setValue(row, FIELD_PHASE_CRITICIAL_VASSOPRESSORS, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_CRITICIAL_VASSOPRESSORS))));
-                setValue(row, FIELD_PHASE_CRITICIAL_VENTILATION, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_CRITICIAL_VENTILATION))));
-                setValue(row, FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION))));
-                setValue(row, FIELD_PHASE_COMPLICATED_SUPERINFECTION, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_COMPLICATED_SUPERINFECTION))));
-                setValue(row, FIELD_PHASE_CRITICIAL_SUPERINFECTION, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_CRITICIAL_SUPERINFECTION))));
-                setValue(row, FIELD_PHASE_RECOVERY_SYMPTOMS, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_PHASE_RECOVERY_SYMPTOMS))));
-                setValue(row, FIELD_LAST_KNOWN_STATUS, convert(handle.getValue(rowNumber, handle.getColumnIndexOf(FIELD_LAST_KNOWN_STATUS))));
+        return input -> {
+            String[] row = new String[HEADER.length];
+            for (int i = 0; i < HEADER.length; i++) {
+
+                // Raw values are shared instances, so we only need to convert each distinct value once
+                String raw = input[columns[i]];
+                String value = converted.get(i).get(raw);
+                if (value == null) {
+                    value = invalid.get(i).get(raw);
+                    if (value == null) {
+                        value = dictionaries[i].intern(convert(HEADER[i], raw));
+                        (validation.isValid(HEADER[i], value) ? converted : invalid).get(i).put(raw, value);
+                    }
+                    if (invalid.get(i).containsKey(raw)) {
+                        validation.add(row, HEADER[i], raw, value);
+                    }
+                }
+                row[i] = value;
             }
-            
-            // Add
-            dataset.add(row);
+            return row;
+        };
+    }
+
+    /**
+     * Converts a value for the given field
+     * @param field
+     * @param value
+     * @return
+     */
+    private static String convert(String field, String value) {
+        switch (field) {
+        case FIELD_DIAGNOSIS_MONTH:
+            return convert(convertDateToMonth(value));
+        case FIELD_DIAGNOSIS_YEAR:
+            return convert(convertDateToYear(value));
+        default:
+            return convert(value);
         }
-        
-        // Done
-        return Data.create(dataset);
     }
 
     /**
@@ -226,20 +306,4 @@ public class IO {
         }
         return value.substring(value.indexOf("_") + 1, value.length());
     }
-
-    /**
-     * Sets value to row
-     * @param row
-     * @param field
-     * @param value
-     */
-    private static void setValue(String[] row, String field, String value) {
-
-        // Insert values
-        for (int i = 0; i < row.length; i++) {
-            if (row[i].equals(field)) {
-                row[i] = value;
-            }
-        }
-    }
 }
@@ -0,0 +1,90 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+/**
+ * Bit-packed keys of encoded columns. Each column uses as many bits as required for
+ * the codes of its dictionary. As the domains of the quasi-identifiers are small,
+ * keys of all quasi-identifiers fit into a few bits, so that tables can be addressed
+ * directly by keys.
+ * @author Fabian Prasser
+ */
+public class Keys {
+
+    /** Maximal number of bits of keys used for addressing tables directly */
+    public static final int MAX_DIRECT_BITS = 24;
+
+    /**
+     * Hash function for keys
+     * @param key
+     * @return
+     */
+    public static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /** Columns */
+    private final int[] columns;
+    /** Offset of each column */
+    private final int[] shifts;
+    /** Number of bits */
+    private final int   bits;
+
+    /**
+     * Creates keys for the given columns
+     * @param columns Encoded records
+     * @param fields
+     */
+    public Keys(Columns columns, String... fields) {
+        this.columns = new int[fields.length];
+        this.shifts = new int[fields.length];
+        int bits = 0;
+        for (int i = 0; i < fields.length; i++) {
+            this.columns[i] = columns.getIndex(fields[i]);
+            this.shifts[i] = bits;
+            bits += Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(columns.getValues(this.columns[i]).length - 1, 0));
+        }
+        if (bits >= Long.SIZE) {
+            throw new IllegalArgumentException("Too many values to pack keys: " + bits + " bits");
+        }
+        this.bits = bits;
+    }
+
+    /**
+     * Returns the number of distinct keys, if tables can be addressed directly, -1 otherwise
+     * @return
+     */
+    public int getCapacity() {
+        return bits <= MAX_DIRECT_BITS ? 1 << bits : -1;
+    }
+
+    /**
+     * Returns the key of a record
+     * @param columns Encoded records, for which the keys have been created
+     * @param row
+     * @return
+     */
+    public long getKey(Columns columns, int row) {
+        long key = 0L;
+        for (int i = 0; i < this.columns.length; i++) {
+            key |= (long) columns.getCode(this.columns[i], row) << shifts[i];
+        }
+        return key;
+    }
+}
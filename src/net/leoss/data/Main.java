@@ -17,15 +17,22 @@
  */
 package net.leoss.data;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.deidentifier.arx.Data;
 import org.deidentifier.arx.exceptions.RollbackRequiredException;
 
+import jdk.jfr.Recording;
+
 /**
  * Main entry point
  * @author Fabian Prasser
@@ -41,14 +48,109 @@ public class Main {
      */
     public static void main(String[] args) throws IOException, RollbackRequiredException {
         
+        // Parse options
+        List<String> files = new ArrayList<>();
+        boolean verbose = false;
+        long timeout = 0L;
+        double preview = 0d;
+        File previous = null;
+        File recording = null;
+        File variants = null;
+        boolean explore = false;
+        for (String arg : args == null ? new String[0] : args) {
+            if (arg == null) {
+                continue;
+            } else if (arg.equals("--progress")) {
+                verbose = true;
+            } else if (arg.startsWith("--deadline=")) {
+                timeout = Long.parseLong(arg.substring("--deadline=".length())) * 1000L;
+            } else if (arg.startsWith("--threads=")) {
+                Pipeline.setThreads(Integer.parseInt(arg.substring("--threads=".length())));
+            } else if (arg.startsWith("--jfr=")) {
+                recording = new File(arg.substring("--jfr=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                Engine.setMode(Engine.Mode.valueOf(arg.substring("--engine=".length()).toUpperCase()));
+            } else if (arg.startsWith("--shards=")) {
+                Shards.setShards(Integer.parseInt(arg.substring("--shards=".length())));
+            } else if (arg.startsWith("--cache=")) {
+                Cache.setDirectory(new File(arg.substring("--cache=".length())));
+            } else if (arg.startsWith("--cache-size=")) {
+                Cache.setCapacity(Integer.parseInt(arg.substring("--cache-size=".length())));
+            } else if (arg.startsWith("--variants=")) {
+                variants = new File(arg.substring("--variants=".length()));
+                if (!variants.exists()) {
+                    throw new IllegalArgumentException("The specified definition of variants doesn't exist.");
+                }
+            } else if (arg.equals("--explore")) {
+                explore = true;
+            } else if (arg.startsWith("--delta=")) {
+                previous = new File(arg.substring("--delta=".length()));
+                if (!previous.exists()) {
+                    throw new IllegalArgumentException("The specified previous release doesn't exist.");
+                }
+            } else if (arg.startsWith("--preview=")) {
+                preview = Double.parseDouble(arg.substring("--preview=".length()));
+                if (preview <= 0d || preview > 1d) {
+                    throw new IllegalArgumentException("The sampling fraction must be in ]0, 1].");
+                }
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                files.add(arg);
+            }
+        }
+        args = files.toArray(new String[files.size()]);
+        
         // Check
-        if (args == null || args.length < 2 || args[0] == null || args[0].length() == 0 || args[1] == null || args[1].length() == 0) {
+        boolean withOutput = variants == null && !explore;
+        if (args.length < (withOutput ? 2 : 1) || args[0].length() == 0 || (withOutput && args[1].length() == 0)) {
             throw new IllegalArgumentException("You need to specify files for input and output.");
         }
         File input = new File(args[0]);
         if (!input.exists()) {
             throw new IllegalArgumentException("The specified input file doesn't exist.");
         }
+        if (Shards.getShards() > 1 && Engine.getMode() != Engine.Mode.NATIVE) {
+            throw new IllegalArgumentException("Shards are only supported by the native engine.");
+        }
+        if (variants != null && (previous != null || preview > 0d || explore || Shards.getShards() > 1)) {
+            throw new IllegalArgumentException("Variants can't be combined with --delta, --preview, --explore or --shards.");
+        }
+        
+        // Variants, which define their outputs
+        if (variants != null) {
+            List<Variants.Variant> definitions = Variants.load(variants);
+            Progress progress = verbose ? Progress.create(System.err, timeout) : new Progress(null, timeout);
+            Recording flight = recording == null ? null : Events.start(recording);
+            try {
+                Variants.run(IO.loadData(input, progress), definitions, progress);
+            } finally {
+                if (flight != null) {
+                    flight.stop();
+                    flight.close();
+                }
+            }
+            return;
+        }
+        
+        // Exploration, which reads commands from stdin. The recording covers the computation of the
+        // explorer and is written before the interactive session starts.
+        if (explore) {
+            Progress progress = verbose ? Progress.create(System.err, timeout) : new Progress(null, timeout);
+            Recording flight = recording == null ? null : Events.start(recording);
+            Explorer explorer;
+            try {
+                Data data = new Pipeline(Anon::anonymizeGeneralize).run(IO.loadData(input, progress), progress);
+                explorer = Anon.explore(data, progress);
+            } finally {
+                if (flight != null) {
+                    flight.stop();
+                    flight.close();
+                }
+            }
+            explorer.run(new BufferedReader(new InputStreamReader(System.in)), System.out);
+            return;
+        }
         
         // Check output
         if (!args[1].endsWith(".csv")) {
@@ -57,30 +159,91 @@ public class Main {
         
         // Create empty output file
         File output = new File(args[1]);
-        output.createNewFile();
+        boolean created = output.createNewFile();
         if (!Files.isWritable(new File(args[1]).toPath())) {
             throw new IllegalArgumentException("The specified output file isn't writable.");
         }
         
-        // Parse
-        Data data = IO.loadData(input);
+        // Progress
+        Progress progress = verbose ? Progress.create(System.err, timeout) : new Progress(null, timeout);
         
-        // Generalize
-        data = Anon.anonymizeGeneralize(data);
-
-        // Anonymize
-        data = Anon.anonymizeFirstStage(data);
-        data = Anon.anonymizeSecondStage(data);
-
-        // Report
-        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(output.getAbsolutePath() + ".report")));
-        for (Report report : Report.getReports()) {
-            writer.write(report.toString());
-            writer.write("\n");
+        // Output is written to temporary files first, so that cancelled runs don't leave partial output
+        File temporaryOutput = new File(output.getAbsolutePath() + ".tmp");
+        File temporaryReport = new File(output.getAbsolutePath() + ".report.tmp");
+        File temporaryAdded = new File(output.getAbsolutePath() + ".delta.added.csv.tmp");
+        File temporaryRemoved = new File(output.getAbsolutePath() + ".delta.removed.csv.tmp");
+        File temporaryManifest = new File(output.getAbsolutePath() + ".delta.manifest.tmp");
+        boolean success = false;
+        Recording flight = recording == null ? null : Events.start(recording);
+        try {
+            
+            // Parse
+            Data data = IO.loadData(input, progress);
+            
+            // Preview, which doesn't produce output, so that the empty output file will be removed
+            if (preview > 0d) {
+                data = new Pipeline(Anon::anonymizeGeneralize).run(data, progress);
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(temporaryReport))) {
+                    writer.write(Anon.preview(data, preview, 0L, progress).toString());
+                }
+                progress.check();
+                Files.move(temporaryReport.toPath(), new File(output.getAbsolutePath() + ".preview").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+            
+            // Anonymize
+            data = (Shards.getShards() > 1 ? Pipeline.ANONYMIZATION_SHARDED : Pipeline.ANONYMIZATION).run(data, progress);
+            
+            // Delta to the previous release, which is read before it may be replaced
+            Delta delta = previous == null ? null : new Delta(previous, data, progress);
+            
+            // Report
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(temporaryReport))) {
+                for (Report report : Report.getReports()) {
+                    writer.write(report.toString());
+                    writer.write("\n");
+                }
+                if (delta != null) {
+                    writer.write(delta.toString());
+                }
+            }
+            
+            // Write
+            IO.writeOutput(data, temporaryOutput, progress);
+            if (delta != null) {
+                delta.write(temporaryAdded, temporaryRemoved, temporaryManifest);
+            }
+            
+            // Publish
+            progress.check();
+            if (delta != null) {
+                Files.move(temporaryAdded.toPath(), new File(output.getAbsolutePath() + ".delta.added.csv").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temporaryRemoved.toPath(), new File(output.getAbsolutePath() + ".delta.removed.csv").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temporaryManifest.toPath(), new File(output.getAbsolutePath() + ".delta.manifest").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temporaryReport.toPath(), new File(output.getAbsolutePath() + ".report").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporaryOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            success = true;
+            
+        } finally {
+            
+            // Cleanup
+            if (!success) {
+                temporaryOutput.delete();
+                temporaryReport.delete();
+                temporaryAdded.delete();
+                temporaryRemoved.delete();
+                temporaryManifest.delete();
+                if (created) {
+                    output.delete();
+                }
+            }
+            
+            // Write recording, also for failed runs
+            if (flight != null) {
+                flight.stop();
+                flight.close();
+            }
         }
-        writer.close();
-        
-        // Write
-        IO.writeOutput(data, output);
     }
 }
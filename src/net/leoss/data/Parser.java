@@ -0,0 +1,486 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.deidentifier.arx.DataType;
+
+/**
+ * Parallel parser for CSV files with a header. The file is memory-mapped and split
+ * into chunks at line breaks, which are parsed concurrently. Fields may be quoted
+ * with double quotes, quotes within quoted fields are escaped by doubling them.
+ * Quotes only open a quoted field at the start of a field and are taken literally
+ * elsewhere. Chunks are split at line breaks found with the same rules, by scanning
+ * each chunk concurrently for each state in which it may start.
+ * Empty lines are skipped and empty fields are mapped to ARX's null value. As all
+ * control characters are ASCII, UTF-8 encoded files can be split at arbitrary bytes.
+ * @author Fabian Prasser
+ */
+public class Parser {
+
+    /**
+     * Memory-mapped file, which may be larger than a single buffer
+     * @author Fabian Prasser
+     */
+    private static class Input {
+
+        /** Bits addressing bytes within a segment */
+        private static final int        BITS = 30;
+        /** Mask addressing bytes within a segment */
+        private static final long       MASK = (1L << BITS) - 1L;
+        /** Segments */
+        private final MappedByteBuffer[] segments;
+        /** Length */
+        private final long               length;
+
+        /**
+         * Creates a new instance
+         * @param file
+         * @throws IOException
+         */
+        private Input(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                this.length = channel.size();
+                this.segments = new MappedByteBuffer[(int) ((length + MASK) >>> BITS)];
+                for (int i = 0; i < segments.length; i++) {
+                    long offset = (long) i << BITS;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MASK + 1L, length - offset));
+                }
+            }
+        }
+
+        /**
+         * Returns the byte at the given position
+         * @param position
+         * @return
+         */
+        private byte get(long position) {
+            return segments[(int) (position >>> BITS)].get((int) (position & MASK));
+        }
+    }
+
+    /**
+     * Buffer for the bytes of the current token and cache of decoded tokens,
+     * which avoids creating strings for values seen before
+     * @author Fabian Prasser
+     */
+    private static class Tokens {
+
+        /** Maximal number of tokens cached */
+        private static final int MAX_SIZE = 1 << 16;
+        /** Keys */
+        private byte[][]         keys     = new byte[64][];
+        /** Values */
+        private String[]         values   = new String[64];
+        /** Size */
+        private int              size     = 0;
+        /** Bytes of the current token */
+        private byte[]           buffer   = new byte[256];
+        /** Length of the current token */
+        private int              length   = 0;
+
+        /**
+         * Appends a byte to the current token
+         * @param value
+         */
+        private void append(byte value) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = value;
+        }
+
+        /**
+         * Returns the current token and starts a new one
+         * @param quoted
+         * @return
+         */
+        private String next(boolean quoted) {
+            String token = length == 0 ? (quoted ? "" : DataType.NULL_VALUE) : get(buffer, length);
+            length = 0;
+            return token;
+        }
+
+        /**
+         * Returns the string for the given bytes
+         * @param buffer
+         * @param length
+         * @return
+         */
+        private String get(byte[] buffer, int length) {
+
+            // Probe
+            int hash = hash(buffer, length);
+            int mask = keys.length - 1;
+            int index = hash & mask;
+            while (keys[index] != null) {
+                if (Arrays.equals(keys[index], 0, keys[index].length, buffer, 0, length)) {
+                    return values[index];
+                }
+                index = (index + 1) & mask;
+            }
+
+            // Decode
+            String value = new String(buffer, 0, length, StandardCharsets.UTF_8);
+            if (size == MAX_SIZE) {
+                return value;
+            }
+
+            // Insert
+            keys[index] = Arrays.copyOf(buffer, length);
+            values[index] = value;
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+            return value;
+        }
+
+        /**
+         * Hash code
+         * @param buffer
+         * @param length
+         * @return
+         */
+        private int hash(byte[] buffer, int length) {
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Doubles the capacity
+         */
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int index = hash(oldKeys[i], oldKeys[i].length) & mask;
+                    while (keys[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = oldKeys[i];
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of parsing a chunk
+     * @author Fabian Prasser
+     */
+    private static class Chunk<T> {
+
+        /** Rows */
+        private final List<T> rows  = new ArrayList<>();
+        /** Lines parsed */
+        private int           lines = 0;
+        /** Error, if any */
+        private String        error = null;
+    }
+
+    /** Quote */
+    private static final byte QUOTE      = '"';
+    /** Line feed */
+    private static final byte LINE_FEED  = '\n';
+    /** Carriage return */
+    private static final byte RETURN     = '\r';
+    /** Minimal size of a chunk */
+    private static final long CHUNK_SIZE = 1L << 20;
+
+    /** State at the start of a field */
+    private static final int     FIELD_START = 0;
+    /** State within an unquoted field */
+    private static final int     FIELD       = 1;
+    /** State within a quoted field */
+    private static final int     QUOTED      = 2;
+    /** State after a quote within a quoted field, which closes it unless another quote follows */
+    private static final int     CLOSING     = 3;
+    /** Transitions of the states of {@link #parseLine} for other bytes, quotes, delimiters and line feeds */
+    private static final int[][] TRANSITIONS = {
+        { FIELD, QUOTED, FIELD_START, FIELD_START },
+        { FIELD, FIELD, FIELD_START, FIELD_START },
+        { QUOTED, CLOSING, QUOTED, QUOTED },
+        { FIELD, QUOTED, FIELD_START, FIELD_START },
+    };
+
+    /** Input */
+    private final Input       input;
+    /** Delimiter */
+    private final byte        delimiter;
+    /** Header */
+    private final String[]    header;
+    /** Position of the first line after the header */
+    private final long        start;
+
+    /**
+     * Creates a new instance and parses the header
+     * @param file
+     * @param delimiter
+     * @throws IOException
+     */
+    public Parser(File file, char delimiter) throws IOException {
+        this.input = new Input(file);
+        this.delimiter = (byte) delimiter;
+
+        // Parse header, i.e. the first non-empty line
+        List<String> fields = new ArrayList<>();
+        long position = 0L;
+        while (fields.isEmpty() && position < input.length) {
+            position = parseLine(position, input.length, fields, new Tokens());
+        }
+        if (fields.isEmpty()) {
+            throw new IOException("The file doesn't contain a header.");
+        }
+        this.header = fields.toArray(new String[fields.size()]);
+        this.start = Math.min(position, input.length);
+    }
+
+    /**
+     * Returns the header
+     * @return
+     */
+    public String[] getHeader() {
+        return header.clone();
+    }
+
+    /**
+     * Parses all rows after the header and converts them. Returns the converted rows in the
+     * order of the file. Chunks are converted concurrently, each with its own converter
+     * obtained from the factory. The array passed to a converter is reused for subsequent rows.
+     * @param factory Creates converters
+     * @param progress
+     * @return
+     * @throws IOException
+     */
+    public <T> List<T> parse(Supplier<Function<String[], T>> factory, Progress progress) throws IOException {
+
+        // Nominal boundaries
+        progress.begin("Loading", input.length - start);
+        int chunks = (int) Math.max(1L, Math.min((input.length - start) / CHUNK_SIZE, Runtime.getRuntime().availableProcessors() * 4L));
+        long[] nominal = new long[chunks + 1];
+        for (int i = 0; i <= chunks; i++) {
+            nominal[i] = start + (input.length - start) * i / chunks;
+        }
+
+        // Scan each nominal chunk for the first line break, starting in each state
+        List<Callable<long[][]>> scans = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            long from = nominal[i];
+            long to = nominal[i + 1];
+            scans.add(() -> scan(from, to));
+        }
+        List<long[][]> scanned = Pipeline.invokeAll(scans);
+
+        // Move boundaries to the next line break, following the states through the chunks
+        List<Long> boundaries = new ArrayList<>();
+        int[] states = new int[chunks + 1];
+        states[0] = FIELD_START;
+        for (int i = 0; i < chunks; i++) {
+            states[i + 1] = (int) scanned.get(i)[1][states[i]];
+        }
+        boundaries.add(start);
+        for (int i = 1; i < chunks; i++) {
+            long boundary = input.length;
+            for (int j = i; j < chunks; j++) {
+                if (scanned.get(j)[0][states[j]] >= 0L) {
+                    boundary = scanned.get(j)[0][states[j]];
+                    break;
+                }
+            }
+            boundaries.add(boundary);
+        }
+        boundaries.add(input.length);
+
+        // Parse
+        List<Callable<Chunk<T>>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            long from = boundaries.get(i);
+            long to = boundaries.get(i + 1);
+            tasks.add(() -> parse(from, to, factory.get(), progress));
+        }
+
+        // Merge in order
+        List<T> result = new ArrayList<>();
+        int lines = 0;
+        for (Chunk<T> chunk : Pipeline.invokeAll(tasks)) {
+            if (chunk.error != null) {
+                throw new IOException("Row " + (lines + chunk.lines) + ": " + chunk.error);
+            }
+            lines += chunk.lines;
+            result.addAll(chunk.rows);
+        }
+        progress.end();
+        return result;
+    }
+
+    /**
+     * Scans a chunk for the first line break, starting in each state
+     * @param from
+     * @param to
+     * @return Position after the first line break for each state in which the chunk
+     *         starts, -1 if there is none, and the state at the end for each state
+     */
+    private long[][] scan(long from, long to) {
+        long[] lines = new long[TRANSITIONS.length];
+        long[] states = new long[TRANSITIONS.length];
+        Arrays.fill(lines, -1L);
+        for (int state = 0; state < states.length; state++) {
+            states[state] = state;
+        }
+        for (long position = from; position < to; position++) {
+            byte value = input.get(position);
+            int type = value == QUOTE ? 1 : value == delimiter ? 2 : value == LINE_FEED ? 3 : 0;
+            for (int state = 0; state < states.length; state++) {
+                int current = (int) states[state];
+                if (type == 3 && current != QUOTED && lines[state] < 0L) {
+                    lines[state] = position + 1L;
+                }
+                states[state] = TRANSITIONS[current][type];
+            }
+        }
+        return new long[][] { lines, states };
+    }
+
+    /**
+     * Parses a chunk
+     * @param from
+     * @param to
+     * @param converter
+     * @param progress
+     * @return
+     */
+    private <T> Chunk<T> parse(long from, long to, Function<String[], T> converter, Progress progress) {
+
+        // Prepare
+        Events.Convert event = new Events.Convert();
+        event.begin();
+        Chunk<T> chunk = new Chunk<>();
+        List<String> fields = new ArrayList<>(header.length);
+        String[] row = new String[header.length];
+        Tokens tokens = new Tokens();
+        long reported = from;
+
+        // Parse
+        long position = from;
+        while (position < to) {
+            fields.clear();
+            position = parseLine(position, to, fields, tokens);
+            if (fields.isEmpty()) {
+                continue;
+            }
+            chunk.lines++;
+            if (fields.size() < header.length) {
+                chunk.error = "Expected " + header.length + " fields, but found " + fields.size();
+                return chunk;
+            }
+            chunk.rows.add(converter.apply(fields.subList(0, header.length).toArray(row)));
+
+            // Progress
+            if (position - reported >= CHUNK_SIZE) {
+                progress.worked(position - reported);
+                reported = position;
+            }
+        }
+
+        // Done
+        progress.worked(to - reported);
+        event.offset = from;
+        event.records = chunk.rows.size();
+        event.commit();
+        return chunk;
+    }
+
+    /**
+     * Parses a line. Adds no fields for empty lines.
+     * @param position
+     * @param to
+     * @param fields
+     * @param tokens
+     * @return Position after the line
+     */
+    private long parseLine(long position, long to, List<String> fields, Tokens tokens) {
+
+        // Empty line
+        if (input.get(position) == LINE_FEED) {
+            return position + 1L;
+        }
+        if (input.get(position) == RETURN && (position + 1L == to || input.get(position + 1L) == LINE_FEED)) {
+            return Math.min(position + 2L, to);
+        }
+
+        // Fields
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        boolean start = true;
+        for (; position < to; position++) {
+            byte value = input.get(position);
+            if (quoted) {
+                if (value == QUOTE) {
+                    if (position + 1L < to && input.get(position + 1L) == QUOTE) {
+                        position++;
+                    } else {
+                        quoted = false;
+                        continue;
+                    }
+                }
+            } else if (value == QUOTE && start) {
+                quoted = true;
+                wasQuoted = true;
+                start = false;
+                continue;
+            } else if (value == delimiter) {
+                fields.add(tokens.next(wasQuoted));
+                wasQuoted = false;
+                start = true;
+                continue;
+            } else if (value == LINE_FEED) {
+                position++;
+                break;
+            } else if (value == RETURN && (position + 1L == to || input.get(position + 1L) == LINE_FEED)) {
+                continue;
+            }
+
+            // Append
+            start = false;
+            tokens.append(value);
+        }
+
+        // Last field
+        fields.add(tokens.next(wasQuoted));
+        return position;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.exceptions.RollbackRequiredException;
+
+/**
+ * A pipeline of stages, and the executor on which independent work is performed.
+ * Tasks are forked to the executor and joined by the caller, which executes tasks
+ * that have not been started yet itself. Nested parallelism therefore can't
+ * exhaust the threads of the executor.
+ * @author Fabian Prasser
+ */
+public class Pipeline {
+
+    /**
+     * A stage of the pipeline
+     * @author Fabian Prasser
+     */
+    @FunctionalInterface
+    public static interface Stage {
+
+        /**
+         * Applies the stage
+         * @param data
+         * @param progress
+         * @return
+         * @throws IOException
+         * @throws RollbackRequiredException
+         */
+        public Data apply(Data data, Progress progress) throws IOException, RollbackRequiredException;
+    }
+
+    /** The complete anonymization process */
+    public static final Pipeline ANONYMIZATION = new Pipeline(Anon::anonymizeGeneralize,
+                                                              Anon::anonymizeFirstStage,
+                                                              Anon::anonymizeSecondStage);
+
+    /** The complete anonymization process, with a sharded second stage */
+    public static final Pipeline ANONYMIZATION_SHARDED = new Pipeline(Anon::anonymizeGeneralize,
+                                                                      Anon::anonymizeFirstStage,
+                                                                      Shards::anonymizeSecondStage);
+
+    /** Number of threads */
+    private static int             threads  = Runtime.getRuntime().availableProcessors();
+    /** Executor */
+    private static ExecutorService executor = null;
+
+    /**
+     * Forks a task
+     * @param task
+     * @return
+     */
+    public static <T> FutureTask<T> fork(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        getExecutor().execute(future);
+        return future;
+    }
+
+    /**
+     * Returns the executor
+     * @return
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "leoss-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Executes the tasks and returns their results in the order of the tasks
+     * @param tasks
+     * @return
+     * @throws IOException
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<FutureTask<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(fork(task));
+        }
+        List<T> results = new ArrayList<>();
+        for (FutureTask<T> future : futures) {
+            results.add(join(future));
+        }
+        return results;
+    }
+
+    /**
+     * Joins a forked task. Executes the task, if it has not been started yet.
+     * @param future
+     * @return
+     * @throws IOException
+     */
+    public static <T> T join(FutureTask<T> future) throws IOException {
+        future.run();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads. Must be called before the executor is used.
+     * @param threads
+     */
+    public static synchronized void setThreads(int threads) {
+        if (executor != null) {
+            throw new IllegalStateException("The executor has already been created.");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required.");
+        }
+        Pipeline.threads = threads;
+    }
+
+    /** Stages */
+    private final List<Stage> stages;
+
+    /**
+     * Creates a new instance
+     * @param stages
+     */
+    public Pipeline(Stage... stages) {
+        this.stages = List.of(stages);
+    }
+
+    /**
+     * Runs the stages
+     * @param data
+     * @param progress
+     * @return
+     * @throws IOException
+     * @throws RollbackRequiredException
+     */
+    public Data run(Data data, Progress progress) throws IOException, RollbackRequiredException {
+        for (Stage stage : stages) {
+            progress.check();
+            data = stage.apply(data, progress);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Estimated effects of the anonymization process. Equivalence classes are
+ * sampled as clusters, so that all records of a class are either contained in
+ * the sample or not. Totals are extrapolated with the Horvitz-Thompson estimator.
+ * @author Fabian Prasser
+ */
+public class Preview {
+
+    /**
+     * An estimate with a 95% confidence interval
+     * @author Fabian Prasser
+     */
+    public static record Estimate(double value, double lower, double upper) {
+
+        /**
+         * Converts to string
+         */
+        @Override
+        public String toString() {
+            return value + " [" + lower + ", " + upper + "]";
+        }
+    }
+
+    /** Quantile of the normal distribution for 95% confidence intervals */
+    private static final double Z = 1.959964d;
+
+    /**
+     * Estimates a ratio of two totals, e.g. the number of classes per record
+     * @param numerators Values per sampled cluster
+     * @param denominators Values per sampled cluster
+     * @param fraction Probability with which clusters have been sampled
+     * @return
+     */
+    public static Estimate getRatio(List<Double> numerators, List<Double> denominators, double fraction) {
+
+        // Point estimate, the sampling fraction cancels out
+        double numerator = 0d;
+        double denominator = 0d;
+        for (int i = 0; i < numerators.size(); i++) {
+            numerator += numerators.get(i);
+            denominator += denominators.get(i);
+        }
+        if (denominator == 0d) {
+            return new Estimate(0d, 0d, 0d);
+        }
+        double ratio = numerator / denominator;
+
+        // Variance from linearization
+        double residuals = 0d;
+        for (int i = 0; i < numerators.size(); i++) {
+            double residual = numerators.get(i) - ratio * denominators.get(i);
+            residuals += residual * residual;
+        }
+        double error = Z * Math.sqrt((1d - fraction) * residuals) / denominator;
+
+        // Done
+        return new Estimate(ratio, Math.max(0d, ratio - error), Math.min(1d, ratio + error));
+    }
+
+    /**
+     * Estimates a total from the values of the sampled clusters
+     * @param values Values per sampled cluster
+     * @param fraction Probability with which clusters have been sampled
+     * @param max Upper bound of the total
+     * @return
+     */
+    public static Estimate getTotal(List<Double> values, double fraction, double max) {
+        double sum = 0d;
+        double squares = 0d;
+        for (double value : values) {
+            sum += value;
+            squares += value * value;
+        }
+        double total = sum / fraction;
+        double error = Z * Math.sqrt((1d - fraction) * squares) / fraction;
+        return new Estimate(total, Math.max(0d, total - error), Math.min(max, total + error));
+    }
+
+    /** Properties */
+    private final double                        fraction;
+    /** Properties */
+    private final int                           records;
+    /** Properties */
+    private final int                           sampledRecords;
+    /** Properties */
+    private final int                           sampledClasses;
+    /** Exact effects of the first stage */
+    private final List<Pair<String, Integer>>   effectsFirstStage;
+    /** Estimated effects of the second stage */
+    private final List<Pair<String, Estimate>>  effectsSecondStage = new ArrayList<>();
+    /** Estimated number of records released */
+    private Estimate                            released;
+    /** Risk */
+    private double                              riskLowest;
+    /** Risk */
+    private double                              riskHighest;
+    /** Risk */
+    private Estimate                            riskAverage;
+
+    /**
+     * Creates a new instance
+     * @param fraction
+     * @param records Records in the input of the second stage
+     * @param sampledRecords
+     * @param sampledClasses
+     * @param effectsFirstStage
+     */
+    public Preview(double fraction, int records, int sampledRecords, int sampledClasses, List<Pair<String, Integer>> effectsFirstStage) {
+        this.fraction = fraction;
+        this.records = records;
+        this.sampledRecords = sampledRecords;
+        this.sampledClasses = sampledClasses;
+        this.effectsFirstStage = effectsFirstStage;
+    }
+
+    /**
+     * Adds an estimated effect of the second stage
+     * @param model
+     * @param removed
+     */
+    public void addEffect(String model, Estimate removed) {
+        effectsSecondStage.add(new Pair<>(model, removed));
+    }
+
+    /**
+     * Sets the estimated number of records released
+     * @param released
+     */
+    public void setReleased(Estimate released) {
+        this.released = released;
+    }
+
+    /**
+     * Sets the risks estimated from the released classes in the sample
+     * @param riskLowest
+     * @param riskAverage
+     * @param riskHighest
+     */
+    public void setRisks(double riskLowest, Estimate riskAverage, double riskHighest) {
+        this.riskLowest = riskLowest;
+        this.riskAverage = riskAverage;
+        this.riskHighest = riskHighest;
+    }
+
+    /**
+     * Converts to string
+     */
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Preview\n");
+        builder.append("-------\n");
+        builder.append("- Sampling fraction of classes: ").append(fraction).append("\n");
+        builder.append("- Records in input of second stage: ").append(records).append("\n");
+        builder.append("- Records in sample: ").append(sampledRecords).append(" in ").append(sampledClasses).append(" classes\n");
+        for (Pair<String, Integer> effect : effectsFirstStage) {
+            builder.append("- Effect (first stage, exact): ").append(effect.getFirst()).append(", records removed: ").append(effect.getSecond()).append("\n");
+        }
+        for (Pair<String, Estimate> effect : effectsSecondStage) {
+            builder.append("- Effect (second stage, estimated): ").append(effect.getFirst()).append(", records removed: ").append(effect.getSecond()).append("\n");
+        }
+        builder.append("- Total records to be released (estimated): ").append(released).append("\n");
+        builder.append("- Highest re-identification risk (in sample): ").append(riskHighest).append("\n");
+        builder.append("- Lowest re-identification risk (in sample): ").append(riskLowest).append("\n");
+        builder.append("- Average re-identification risk (estimated): ").append(riskAverage).append("\n");
+        return builder.toString();
+    }
+}
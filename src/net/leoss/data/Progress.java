@@ -0,0 +1,228 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.PrintStream;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Progress of a run. Reports the progress of the stages to a listener and acts
+ * as a cancellation token, which is cancelled explicitly or when the deadline passes.
+ * @author Fabian Prasser
+ */
+public class Progress {
+
+    /**
+     * Listener for progress updates
+     * @author Fabian Prasser
+     */
+    @FunctionalInterface
+    public static interface Listener {
+
+        /**
+         * Called when progress has been made
+         * @param stage Current stage
+         * @param step Current step, e.g. the model being processed, may be null
+         * @param done Units processed, e.g. rows or models
+         * @param total Units to process
+         * @param eta Estimated remaining time of the stage in milliseconds, -1 if unknown
+         */
+        public void progress(String stage, String step, long done, long total, long eta);
+    }
+
+    /** Minimal interval between two updates in milliseconds */
+    private static final long INTERVAL = 1000L;
+
+    /**
+     * Returns an instance which prints progress updates to the given stream
+     * @param out
+     * @param timeout Timeout in milliseconds, 0 for no deadline
+     * @return
+     */
+    public static Progress create(PrintStream out, long timeout) {
+        return new Progress((stage, step, done, total, eta) -> {
+            StringBuilder builder = new StringBuilder();
+            builder.append("[").append(stage).append("] ");
+            if (step != null) {
+                builder.append(step).append(": ");
+            }
+            builder.append(done).append("/").append(total);
+            if (eta >= 0) {
+                builder.append(", ETA ").append(eta / 1000L).append(" s");
+            }
+            out.println(builder.toString());
+        }, timeout);
+    }
+
+    /**
+     * Returns an instance which does not report progress and has no deadline
+     * @return
+     */
+    public static Progress none() {
+        return new Progress(null, 0L);
+    }
+
+    /** Parent, whose cancellation and deadline apply, may be null */
+    private final Progress   parent;
+    /** Listener, may be null */
+    private final Listener   listener;
+    /** Deadline in terms of System.nanoTime(), if any */
+    private final long       deadline;
+    /** Whether a deadline has been set */
+    private final boolean    hasDeadline;
+    /** Cancelled */
+    private volatile boolean cancelled = false;
+    /** State */
+    private String           stage;
+    /** State */
+    private String           step;
+    /** State */
+    private long             done;
+    /** State */
+    private long             total;
+    /** State */
+    private long             started;
+    /** State */
+    private long             notified;
+
+    /**
+     * Creates a new instance
+     * @param listener Listener, may be null
+     * @param timeout Timeout in milliseconds, 0 for no deadline
+     */
+    public Progress(Listener listener, long timeout) {
+        this(null, listener, timeout);
+    }
+
+    /**
+     * Creates a new instance
+     * @param parent Parent, may be null
+     * @param listener Listener, may be null
+     * @param timeout Timeout in milliseconds, 0 for no deadline
+     */
+    private Progress(Progress parent, Listener listener, long timeout) {
+        this.parent = parent;
+        this.listener = listener;
+        this.hasDeadline = timeout > 0L;
+        this.deadline = System.nanoTime() + timeout * 1000000L;
+    }
+
+    /**
+     * Starts a new stage
+     * @param stage
+     * @param total Units to process
+     */
+    public synchronized void begin(String stage, long total) {
+        check();
+        this.stage = stage;
+        this.step = null;
+        this.done = 0L;
+        this.total = total;
+        this.started = System.nanoTime();
+        update(true);
+    }
+
+    /**
+     * Returns an instance for a concurrent part of the run, which reports its own progress
+     * to the listener, prefixed with the given name. It is cancelled with this instance.
+     * @param name
+     * @return
+     */
+    public Progress fork(String name) {
+        Listener listener = this.listener == null ? null : (stage, step, done, total, eta) -> this.listener.progress(name + ": " + stage, step, done, total, eta);
+        return new Progress(this, listener, 0L);
+    }
+
+    /**
+     * Requests cancellation
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Checks whether the run has been cancelled or the deadline has passed
+     * @throws CancellationException
+     */
+    public void check() throws CancellationException {
+        if (parent != null) {
+            parent.check();
+        }
+        if (cancelled) {
+            throw new CancellationException("The run has been cancelled.");
+        }
+        if (hasDeadline && System.nanoTime() - deadline > 0L) {
+            cancelled = true;
+            throw new CancellationException("The deadline of the run has passed.");
+        }
+    }
+
+    /**
+     * Ends the current stage
+     */
+    public synchronized void end() {
+        this.done = this.total;
+        update(true);
+    }
+
+    /**
+     * Starts a new step within the current stage
+     * @param step
+     */
+    public synchronized void step(String step) {
+        check();
+        this.step = step;
+        update(true);
+    }
+
+    /**
+     * Reports that units have been processed
+     * @param units
+     */
+    public synchronized void worked(long units) {
+        check();
+        this.done += units;
+        update(false);
+    }
+
+    /**
+     * Notifies the listener
+     * @param force
+     */
+    private void update(boolean force) {
+
+        // Check
+        if (listener == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!force && (now - notified) / 1000000L < INTERVAL) {
+            return;
+        }
+        notified = now;
+
+        // Estimate
+        long eta = -1L;
+        if (done > 0L && total >= done) {
+            eta = (now - started) / 1000000L * (total - done) / done;
+        }
+
+        // Notify
+        listener.progress(stage, step, done, total, eta);
+    }
+}
@@ -17,10 +17,16 @@
  */
 package net.leoss.data;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.math3.util.Pair;
 import org.deidentifier.arx.Data;
@@ -34,7 +40,9 @@ import org.deidentifier.arx.aggregates.StatisticsFrequencyDistribution;
 public class Report {
     
     /** List of reports*/
-    private static final List<Report> REPORTS = new ArrayList<>();
+    private static final List<Report>  REPORTS        = new ArrayList<>();
+    /** Share of generalized cells of the quasi-identifiers, from the last generalization */
+    private static Map<String, Double> generalization = new HashMap<>();
 
     /**
      * Returns the reports
@@ -47,21 +55,89 @@ public class Report {
      * Register input
      * @param phase
      * @param handle
+     * @throws IOException 
      */
-    public static Report registerInput(String phase, DataHandle handle) {
+    public static Report registerInput(String phase, DataHandle handle) throws IOException {
         return register(phase, handle, true);
     }
     /**
-     * Register output
+     * Registers the generalization of the quasi-identifiers, which keeps all records in the
+     * order of the input. The share of generalized cells is determined in one pass over the
+     * cells of the quasi-identifiers, excluding missing values, and reported as a side result
+     * in the utility metrics of all later phases.
+     * @param input
+     * @param output
+     */
+    public static void registerGeneralization(DataHandle input, DataHandle output) {
+
+        // Compare cells of the quasi-identifiers, except missing values
+        String[] fields = Anon.getQuasiIdentifiers();
+        int[] changed = new int[fields.length];
+        int[] cells = new int[fields.length];
+        Iterator<String[]> before = input.iterator();
+        Iterator<String[]> after = output.iterator();
+        int[] columnsBefore = getIndices(before.next(), fields);
+        int[] columnsAfter = getIndices(after.next(), fields);
+        while (before.hasNext() && after.hasNext()) {
+            String[] rowBefore = before.next();
+            String[] rowAfter = after.next();
+            for (int i = 0; i < fields.length; i++) {
+                String value = rowBefore[columnsBefore[i]];
+                if (!value.equals(IO.VALUE_NA) && !value.equals(IO.VALUE_UNKNOWN_MISSING)) {
+                    cells[i]++;
+                    if (!value.equals(rowAfter[columnsAfter[i]])) {
+                        changed[i]++;
+                    }
+                }
+            }
+        }
+        if (before.hasNext() || after.hasNext()) {
+            throw new IllegalStateException("Internal error! Records have been removed by generalization.");
+        }
+        Map<String, Double> generalized = new HashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            generalized.put(fields[i], getShare(changed[i], cells[i]));
+        }
+        synchronized (REPORTS) {
+            Report.generalization = generalized;
+        }
+    }
+
+    /**
+     * Register the output of a phase, whose privacy models are applied one after the other,
+     * so that they remove disjoint records. The records released if a model alone was dropped
+     * are therefore approximated by the records it removes.
      * @param phase
      * @param handle
-     * @param effects 
+     * @param effects
+     * @throws IOException 
      */
-    public static Report registerOutput(String phase, DataHandle handle, List<Pair<String, Integer>> effects) {
+    public static Report registerOutput(String phase, DataHandle handle, List<Pair<String, Integer>> effects) throws IOException {
+        return registerOutput(phase, handle, effects, effects);
+    }
+
+    /**
+     * Register the output of a phase
+     * @param phase
+     * @param handle
+     * @param effects Records removed by each model
+     * @param marginal Records which would be released if only the model was dropped
+     * @throws IOException
+     */
+    public static Report registerOutput(String phase, DataHandle handle, List<Pair<String, Integer>> effects, List<Pair<String, Integer>> marginal) throws IOException {
         Report report = register(phase, handle, false);
+        synchronized (REPORTS) {
+            report.generalized = generalization;
+            for (Report other : REPORTS) {
+                if (other.input && other.phase.equals(phase)) {
+                    report.reference = other;
+                }
+            }
+        }
         for (Pair<String, Integer> effect : effects) {
             report.addEffect(effect.getFirst(), effect.getSecond());
         }
+        report.marginal.addAll(marginal);
         return report;
     }
 
@@ -70,15 +146,23 @@ public class Report {
      * @param phase
      * @param handle
      * @param input
+     * @throws IOException 
      */
-    private static Report register(String phase, DataHandle handle, boolean input) {
+    private static Report register(String phase, DataHandle handle, boolean input) throws IOException {
+        
+        // Analyze risks on a copy, while distributions are extracted from the handle
+        Data data = Util.getData(handle);
+        int records = data.getHandle().getNumRows();
+        FutureTask<double[]> risks = Pipeline.fork(() -> Stats.getRisks(data));
         LinkedHashMap<String, StatisticsFrequencyDistribution> map = new LinkedHashMap<>();
         for (int column = 0; column < handle.getNumColumns(); column++) {
             map.put(handle.getAttributeName(column), handle.getStatistics().getFrequencyDistribution(column));
         }
-        Data data = Util.getData(handle);
-        Report report = new Report(phase, input, map, data.getHandle().getNumRows(), Stats.getLowestRisk(data), Stats.getAverageRisk(data), Stats.getHighestRisk(data));
-        REPORTS.add(report);
+        double[] risk = Pipeline.join(risks);
+        Report report = new Report(phase, input, map, records, risk[0], risk[1], risk[2]);
+        synchronized (REPORTS) {
+            REPORTS.add(report);
+        }
         return report;
     }
 
@@ -89,7 +173,9 @@ public class Report {
     /** Report properties */
     private final LinkedHashMap<String, StatisticsFrequencyDistribution> distributions;
     /** Effects */
-    private final List<Pair<String, Integer>>                            effects = new ArrayList<>();
+    private final List<Pair<String, Integer>>                            effects  = new ArrayList<>();
+    /** Records which would be released if only the model was dropped */
+    private final List<Pair<String, Integer>>                            marginal = new ArrayList<>();
     /** Records */
     private final int                                                    records;
     /** Risk */
@@ -98,6 +184,10 @@ public class Report {
     private final double                                                 riskHighest;
     /** Risk */
     private final double                                                 riskAverage;
+    /** Input of the phase, to which utility is compared, may be null */
+    private Report                                                       reference;
+    /** Share of generalized cells of the quasi-identifiers, from the generalization before the phase */
+    private Map<String, Double>                                          generalized;
     
     /**
      * Creates a new instance
@@ -128,6 +218,14 @@ public class Report {
         effects.add(new Pair<>(model, removed));
     }
     
+    /**
+     * Returns the phase
+     * @return
+     */
+    public String getPhase() {
+        return phase;
+    }
+
     /**
      * Converts to string
      */
@@ -157,6 +255,121 @@ public class Report {
         builder.append("- Highest re-identification risk: ").append(riskHighest).append("\n");
         builder.append("- Lowest re-identification risk: ").append(riskLowest).append("\n");
         builder.append("- Average re-identification risk: ").append(riskAverage).append("\n");
+        if (reference != null) {
+            appendUtility(builder);
+        }
         return builder.toString();
     }
+
+    /**
+     * Appends utility metrics, which compare the distributions to the input of the phase
+     * @param builder
+     */
+    private void appendUtility(StringBuilder builder) {
+
+        // Fields
+        for (Entry<String, StatisticsFrequencyDistribution> entry : distributions.entrySet()) {
+            StatisticsFrequencyDistribution before = reference.distributions.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            Map<String, Double> input = getFrequencies(before);
+            Map<String, Double> output = getFrequencies(entry.getValue());
+
+            // Records lost per category
+            builder.append("- Utility: ").append(entry.getKey()).append(", records lost [");
+            boolean first = true;
+            for (Entry<String, Double> value : input.entrySet()) {
+                long lost = Math.round(value.getValue() * before.count) - Math.round(output.getOrDefault(value.getKey(), 0d) * entry.getValue().count);
+                if (lost != 0) {
+                    builder.append(first ? "" : ", ").append(value.getKey()).append(", ").append(lost);
+                    first = false;
+                }
+            }
+            builder.append("]");
+
+            // Divergences
+            Map<String, Double> mixture = new HashMap<>();
+            for (Entry<String, Double> value : input.entrySet()) {
+                mixture.merge(value.getKey(), value.getValue() / 2d, Double::sum);
+            }
+            for (Entry<String, Double> value : output.entrySet()) {
+                mixture.merge(value.getKey(), value.getValue() / 2d, Double::sum);
+            }
+            builder.append(", KL divergence: ").append(getDivergence(output, input));
+            builder.append(", JS divergence: ").append((getDivergence(input, mixture) + getDivergence(output, mixture)) / 2d);
+
+            // Generalized cells
+            if (generalized.containsKey(entry.getKey())) {
+                builder.append(", share of generalized cells: ").append(generalized.get(entry.getKey()));
+            }
+            builder.append("\n");
+        }
+
+        // Models
+        for (int i = 0; i < effects.size(); i++) {
+            builder.append("- Utility: ").append(effects.get(i).getFirst());
+            builder.append(", share of records removed: ").append(getShare(effects.get(i).getSecond(), reference.records));
+            builder.append(", share of records released if dropped: ").append(getShare(marginal.get(i).getSecond(), reference.records)).append("\n");
+        }
+        builder.append("- Utility: all models, share of records removed: ").append(getShare(reference.records - records, reference.records)).append("\n");
+    }
+
+    /**
+     * Returns the Kullback-Leibler divergence of the first from the second distribution in bits
+     * @param first
+     * @param second
+     * @return
+     */
+    private static double getDivergence(Map<String, Double> first, Map<String, Double> second) {
+        double result = 0d;
+        for (Entry<String, Double> entry : first.entrySet()) {
+            double p = entry.getValue();
+            if (p > 0d) {
+                double q = second.getOrDefault(entry.getKey(), 0d);
+                if (q == 0d) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                result += p * Math.log(p / q) / Math.log(2d);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the relative frequencies of a distribution
+     * @param distribution
+     * @return
+     */
+    private static Map<String, Double> getFrequencies(StatisticsFrequencyDistribution distribution) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < distribution.values.length; i++) {
+            result.put(distribution.values[i], distribution.frequency[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the indices of the given fields
+     * @param header
+     * @param fields
+     * @return
+     */
+    private static int[] getIndices(String[] header, String[] fields) {
+        int[] indices = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            indices[i] = Arrays.asList(header).indexOf(fields[i]);
+        }
+        return indices;
+    }
+
+    /**
+     * Returns a share
+     * @param value
+     * @param total
+     * @return
+     */
+    private static double getShare(int value, int total) {
+        return total == 0 ? 0d : (double) value / (double) total;
+    }
 }
@@ -0,0 +1,203 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+/**
+ * Admits memory-intensive runs depending on the headroom of the heap. The memory
+ * required by each run is estimated upfront and reserved while the run is executed.
+ * A run is admitted if the memory reserved by other runs and its own estimate fit
+ * into the heap on top of the baseline, which is the old generation after the last
+ * collection, taken when the first of the concurrent runs is admitted. The memory
+ * used by running runs is thereby only counted once, and garbage is not counted.
+ * Otherwise a run waits until other runs have finished. A run is always admitted
+ * if no other run is executed, so that runs larger than the heap fail as before
+ * instead of waiting forever. The parameters of the estimate are measured by the
+ * benchmark target with {@link Calibration} and loaded from scheduler.properties,
+ * falling back to coarse upper bounds if they have not been measured. Runs of the
+ * native engine, which require less memory, use the same estimate.
+ * @author Fabian Prasser
+ */
+public class Scheduler {
+
+    /** Resource with the measured parameters of the estimate */
+    public static final String      CALIBRATION      = "scheduler.properties";
+    /** Key of the bytes per cell */
+    public static final String      KEY_CELL         = "bytes.cell";
+    /** Key of the bytes per record */
+    public static final String      KEY_RECORD       = "bytes.record";
+    /** Key of the bytes per distinct value */
+    public static final String      KEY_VALUE        = "bytes.value";
+
+    /** Parameters of the estimate */
+    private static final Properties PARAMETERS       = getParameters();
+    /** Bytes per cell of the data, for the encoded input, the encoded output and the buffers of ARX. Defaults to four integers. */
+    private static final long       BYTES_PER_CELL   = getParameter(KEY_CELL, 4L * Integer.BYTES);
+    /** Bytes per record, for the equivalence classes and the handles of ARX */
+    private static final long       BYTES_PER_RECORD = getParameter(KEY_RECORD, 96L);
+    /** Bytes per distinct value, for the entries of dictionaries and hierarchies */
+    private static final long       BYTES_PER_VALUE  = getParameter(KEY_VALUE, 128L);
+    /** Share of the heap which can be used by runs */
+    private static final double HEAP_SHARE     = 0.9d;
+    /** Interval in which waiting runs check the headroom, in milliseconds */
+    private static final long INTERVAL         = 100L;
+
+    /** Memory */
+    private static final MemoryMXBean MEMORY   = ManagementFactory.getMemoryMXBean();
+    /** Bytes used by the old generation before the running runs have been admitted */
+    private static long               baseline = 0L;
+    /** Bytes reserved by runs */
+    private static long               reserved = 0L;
+    /** Number of runs */
+    private static int                running  = 0;
+
+    /**
+     * Returns the estimated number of bytes required by a run
+     * @param rows
+     * @param cardinalities Number of distinct values of each column
+     * @return
+     */
+    public static long estimate(int rows, int[] cardinalities) {
+        long values = 0L;
+        for (int cardinality : cardinalities) {
+            values += cardinality;
+        }
+        return rows * (cardinalities.length * BYTES_PER_CELL + BYTES_PER_RECORD) + values * BYTES_PER_VALUE;
+    }
+
+    /**
+     * Executes a run after it has been admitted
+     * @param bytes Estimated memory required
+     * @param progress
+     * @param run
+     * @return
+     * @throws IOException
+     */
+    public static <T> T run(long bytes, Progress progress, Callable<T> run) throws IOException {
+
+        // Admit
+        acquire(bytes, progress);
+        try {
+            return run.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            release(bytes);
+        }
+    }
+
+    /**
+     * Waits until a run can be admitted, and reserves its memory
+     * @param bytes
+     * @param progress
+     * @throws IOException
+     */
+    private static synchronized void acquire(long bytes, Progress progress) throws IOException {
+        if (running == 0) {
+            baseline = getBaseline();
+        }
+        while (running > 0 && baseline + reserved + bytes > getAvailable()) {
+            progress.check();
+            try {
+                Scheduler.class.wait(INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            if (running == 0) {
+                baseline = getBaseline();
+            }
+        }
+        reserved += bytes;
+        running++;
+    }
+
+    /**
+     * Returns the number of bytes that can be used by runs
+     * @return
+     */
+    private static long getAvailable() {
+        MemoryUsage usage = MEMORY.getHeapMemoryUsage();
+        long max = usage.getMax() >= 0 ? usage.getMax() : Runtime.getRuntime().maxMemory();
+        return (long) (max * HEAP_SHARE);
+    }
+
+    /**
+     * Returns the number of bytes used by the old generation after the last collection.
+     * Collectors without generations report their only pool.
+     * @return
+     */
+    private static long getBaseline() {
+        long used = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null && !pool.getName().contains("Eden") && !pool.getName().contains("Survivor")) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Returns a parameter of the estimate
+     * @param key
+     * @param defaultValue Used if the parameter has not been measured
+     * @return
+     */
+    private static long getParameter(String key, long defaultValue) {
+        String value = PARAMETERS.getProperty(key);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    /**
+     * Loads the measured parameters of the estimate, if any
+     * @return
+     */
+    private static Properties getParameters() {
+        Properties properties = new Properties();
+        try (InputStream input = Scheduler.class.getResourceAsStream(CALIBRATION)) {
+            if (input != null) {
+                properties.load(input);
+            }
+        } catch (IOException e) {
+            // Use defaults
+        }
+        return properties;
+    }
+
+    /**
+     * Releases the memory of a run
+     * @param bytes
+     */
+    private static synchronized void release(long bytes) {
+        reserved -= bytes;
+        running--;
+        Scheduler.class.notifyAll();
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.util.Pair;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Sharded implementation of the second stage. Records are partitioned by a hash of
+ * their quasi-identifiers, so that all records of a class are contained in the same
+ * partition. Records are streamed from the input into the checkpoints of the partitions
+ * without being copied on the heap. The overall distributions of sensitive values are
+ * counted from the checkpoints and passed to the workers, together with the parameters
+ * of the privacy models. Workers compute the classes of their partitions and evaluate
+ * the privacy models in separate processes, always with the native engine, and return
+ * the records released. The coordinator then keeps these records in their order.
+ * @author Fabian Prasser
+ */
+public class Shards {
+
+    /** Number of shards */
+    private static int shards = 1;
+
+    /**
+     * Implements the second stage with the given number of worker processes
+     * @param data
+     * @param progress
+     * @return
+     * @throws IOException
+     */
+    public static Data anonymizeSecondStage(Data data, Progress progress) throws IOException {
+        return anonymizeSecondStage(data, progress, "Second stage", Anon.SECOND_STAGE_K, Anon.SECOND_STAGE_T, Anon.getSensitiveAttributes());
+    }
+
+    /**
+     * Implements the second stage with the given parameters and number of worker processes
+     * @param data
+     * @param progress
+     * @param phase Phase in the report
+     * @param k
+     * @param t
+     * @param sensitive Sensitive attributes protected with t-closeness
+     * @return
+     * @throws IOException
+     */
+    public static Data anonymizeSecondStage(Data data, Progress progress, String phase, int k, double t, String... sensitive) throws IOException {
+
+        // Report
+        DataHandle handle = data.getHandle();
+        Report.registerInput(phase, handle);
+        Engine engine = Anon.getSecondStageEngine(k, t, sensitive);
+        String[] attributes = engine.getAttributes();
+        int shards = getShards();
+        progress.begin("Second stage", shards + 2);
+
+        // Prepare
+        Iterator<String[]> iter = handle.iterator();
+        String[] header = iter.next();
+        int[] columns = getIndices(header, attributes);
+        int[] quasiIdentifiers = getIndices(header, engine.getQuasiIdentifiers());
+        Dictionary[] dictionaries = new Dictionary[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            dictionaries[i] = Dictionary.get(attributes[i]);
+        }
+
+        // Partition
+        File directory = Files.createTempDirectory("leoss-shards").toFile();
+        List<Process> processes = new ArrayList<>();
+        try {
+
+            // Sizes of the partitions, adding all values to the dictionaries
+            int[] sizes = new int[shards];
+            while (iter.hasNext()) {
+                String[] row = iter.next();
+                sizes[getShard(row, quasiIdentifiers, shards)]++;
+                for (int i = 0; i < columns.length; i++) {
+                    dictionaries[i].getCode(row[columns[i]]);
+                }
+            }
+            String[][] values = new String[attributes.length][];
+            for (int i = 0; i < attributes.length; i++) {
+                values[i] = new String[dictionaries[i].size()];
+                for (int code = 0; code < values[i].length; code++) {
+                    values[i][code] = dictionaries[i].getValue(code);
+                }
+            }
+
+            // Stream the encoded records into checkpoints, which are mapped by the workers
+            Columns.Writer[] writers = new Columns.Writer[shards];
+            try {
+                for (int shard = 0; shard < shards; shard++) {
+                    writers[shard] = new Columns.Writer(new File(directory, "partition" + shard), attributes, values, sizes[shard]);
+                }
+                int[] codes = new int[columns.length];
+                iter = handle.iterator();
+                iter.next();
+                while (iter.hasNext()) {
+                    String[] row = iter.next();
+                    for (int i = 0; i < columns.length; i++) {
+                        codes[i] = dictionaries[i].getCode(row[columns[i]]);
+                    }
+                    writers[getShard(row, quasiIdentifiers, shards)].add(codes);
+                }
+            } finally {
+                for (Columns.Writer writer : writers) {
+                    if (writer != null) {
+                        writer.close();
+                    }
+                }
+            }
+            progress.worked(1);
+
+            // Overall distributions, counted from the checkpoints
+            long[][] distributions = null;
+            for (int shard = 0; shard < shards; shard++) {
+                long[][] partition = engine.getDistributions(Columns.map(new File(directory, "partition" + shard)));
+                if (distributions == null) {
+                    distributions = partition;
+                } else {
+                    for (int i = 0; i < distributions.length; i++) {
+                        for (int j = 0; j < distributions[i].length; j++) {
+                            distributions[i][j] += partition[i][j];
+                        }
+                    }
+                }
+            }
+            File broadcast = new File(directory, "distributions");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(broadcast)))) {
+                write(output, distributions);
+            }
+            progress.worked(1);
+
+            // Start workers, with the options of this virtual machine and the parameters of the models
+            for (int shard = 0; shard < shards; shard++) {
+                List<String> command = getCommand();
+                command.add(new File(directory, "partition" + shard).getAbsolutePath());
+                command.add(broadcast.getAbsolutePath());
+                command.add(new File(directory, "result" + shard).getAbsolutePath());
+                command.add(String.valueOf(k));
+                command.add(String.valueOf(t));
+                command.addAll(Arrays.asList(sensitive));
+                ProcessBuilder builder = new ProcessBuilder(command);
+                builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                processes.add(builder.start());
+            }
+
+            // Wait for workers
+            for (int shard = 0; shard < shards; shard++) {
+                Process process = processes.get(shard);
+                try {
+                    while (!process.waitFor(100L, TimeUnit.MILLISECONDS)) {
+                        progress.check();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+                if (process.exitValue() != 0) {
+                    throw new IOException("Worker " + shard + " failed with exit code " + process.exitValue());
+                }
+                progress.worked(1);
+            }
+
+            // Merge the effects and the records released by each partition
+            int[] counts = new int[engine.getNumberOfModels()];
+            int[] marginal = new int[engine.getNumberOfModels()];
+            BitSet[] released = new BitSet[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, "result" + shard))))) {
+                    for (int model = 0; model < counts.length; model++) {
+                        counts[model] += input.readInt();
+                        marginal[model] += input.readInt();
+                    }
+                    released[shard] = new BitSet(sizes[shard]);
+                    int rows = input.readInt();
+                    for (int i = 0; i < rows; i++) {
+                        released[shard].set(input.readInt());
+                    }
+                }
+            }
+            List<Pair<String, Integer>> effects = new ArrayList<>();
+            List<Pair<String, Integer>> effectsMarginal = new ArrayList<>();
+            for (int model = 0; model < counts.length; model++) {
+                effects.add(new Pair<>(engine.getDescription(model), counts[model]));
+                effectsMarginal.add(new Pair<>(engine.getDescription(model), marginal[model]));
+            }
+
+            // Keep the records released, in their order
+            int[] offsets = new int[shards];
+            List<String[]> output = new ArrayList<>();
+            iter = handle.iterator();
+            output.add(iter.next());
+            while (iter.hasNext()) {
+                String[] row = iter.next();
+                int shard = getShard(row, quasiIdentifiers, shards);
+                if (released[shard].get(offsets[shard]++)) {
+                    output.add(row);
+                }
+            }
+            Data result = Data.create(output);
+
+            // Report
+            progress.end();
+            Report.registerOutput(phase, result.getHandle(), effects, effectsMarginal);
+
+            // Done
+            return result;
+
+        } finally {
+
+            // Cleanup
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Returns the number of shards
+     * @return
+     */
+    public static synchronized int getShards() {
+        return shards;
+    }
+
+    /**
+     * Entry point of workers. Writes the number of records suppressed by each privacy
+     * model and by this model only, and the indices of the records released within the
+     * partition.
+     * @param args Partition, distributions, result, k, t and sensitive attributes
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        // Check
+        if (args == null || args.length < 5) {
+            throw new IllegalArgumentException("You need to specify files for partition, distributions and result, k, t and the sensitive attributes.");
+        }
+
+        // Read distributions
+        Engine engine = Anon.getSecondStageEngine(Integer.parseInt(args[3]), Double.parseDouble(args[4]), Arrays.copyOfRange(args, 5, args.length));
+        long[][] distributions;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(args[1])))) {
+            distributions = new long[input.readInt()][];
+            for (int i = 0; i < distributions.length; i++) {
+                distributions[i] = new long[input.readInt()];
+                for (int j = 0; j < distributions[i].length; j++) {
+                    distributions[i][j] = input.readLong();
+                }
+            }
+        }
+
+        // Evaluate
+        Columns partition = Columns.map(new File(args[0]));
+        Engine.Table table = engine.createTable(partition);
+        int[] masks = engine.evaluate(table, distributions);
+        int[] counts = new int[engine.getNumberOfModels()];
+        int[] marginal = new int[engine.getNumberOfModels()];
+        int released = 0;
+        for (int clazz = 0; clazz < masks.length; clazz++) {
+            if (masks[clazz] == 0) {
+                released += table.getSize(clazz);
+            }
+            for (int model = 0; model < counts.length; model++) {
+                if ((masks[clazz] & (1 << model)) != 0) {
+                    counts[model] += table.getSize(clazz);
+                }
+            }
+            if (Integer.bitCount(masks[clazz]) == 1) {
+                marginal[Integer.numberOfTrailingZeros(masks[clazz])] += table.getSize(clazz);
+            }
+        }
+
+        // Write result
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[2])))) {
+            for (int model = 0; model < counts.length; model++) {
+                output.writeInt(counts[model]);
+                output.writeInt(marginal[model]);
+            }
+            output.writeInt(released);
+            for (int row = 0; row < partition.getNumRows(); row++) {
+                if (masks[table.getClass(row)] == 0) {
+                    output.writeInt(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the number of shards
+     * @param shards
+     */
+    public static synchronized void setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        Shards.shards = shards;
+    }
+
+    /**
+     * Returns the command starting a worker, with the options of this virtual machine
+     * except those which write files or open ports, which must not be shared
+     * @return
+     */
+    private static List<String> getCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-agentlib:jdwp") &&
+                !argument.startsWith("-XX:ArchiveClassesAtExit") &&
+                !argument.startsWith("-XX:DumpLoadedClassList") &&
+                !argument.startsWith("-XX:StartFlightRecording")) {
+                command.add(argument);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Shards.class.getName());
+        return command;
+    }
+
+    /**
+     * Returns the indices of the given fields
+     * @param header
+     * @param fields
+     * @return
+     */
+    private static int[] getIndices(String[] header, String[] fields) {
+        int[] indices = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            indices[i] = Arrays.asList(header).indexOf(fields[i]);
+        }
+        return indices;
+    }
+
+    /**
+     * Returns the shard of a record, from a hash of its quasi-identifiers
+     * @param row
+     * @param quasiIdentifiers
+     * @param shards
+     * @return
+     */
+    private static int getShard(String[] row, int[] quasiIdentifiers, int shards) {
+        long hash = 1L;
+        for (int column : quasiIdentifiers) {
+            hash = 31L * hash + row[column].hashCode();
+        }
+        return Math.floorMod(Keys.hash(hash), shards);
+    }
+
+    /**
+     * Writes frequencies
+     * @param output
+     * @param distributions
+     * @throws IOException
+     */
+    private static void write(DataOutputStream output, long[][] distributions) throws IOException {
+        output.writeInt(distributions.length);
+        for (long[] distribution : distributions) {
+            output.writeInt(distribution.length);
+            for (long frequency : distribution) {
+                output.writeLong(frequency);
+            }
+        }
+    }
+}
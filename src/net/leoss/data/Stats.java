@@ -17,63 +17,49 @@
  */
 package net.leoss.data;
 
-import org.deidentifier.arx.AttributeType;
 import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
 
 /**
- * Statistics
+ * Statistics. Risks are computed from the equivalence classes of the quasi-identifiers,
+ * which are encoded directly from the handle and obtained from tables addressed directly
+ * by bit-packed keys.
  * @author Fabian Prasser
  */
 public class Stats {
 
     /**
-     * Risks
+     * Lowest, average and highest risk, obtained from a single analysis. Risks of records
+     * are the inverse sizes of their classes, as in the sample-based risk model of ARX.
      * @param data
      * @return
      */
-    public static double getAverageRisk(Data data) {
+    public static double[] getRisks(Data data) {
 
-        // Define quasi-identifiers
-        data.getDefinition().setAttributeType(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_DIAGNOSIS_MONTH, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        
-        // Analyze
-        return data.getHandle().getRiskEstimator().getSampleBasedReidentificationRisk().getAverageRisk();
-    }
-
-    /**
-     * Risks
-     * @param data
-     * @return
-     */
-    public static double getHighestRisk(Data data) {
-
-        // Define quasi-identifiers
-        data.getDefinition().setAttributeType(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_DIAGNOSIS_MONTH, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-
-        // Analyze
-        return data.getHandle().getRiskEstimator().getSampleBasedReidentificationRisk().getHighestRisk();
-    }
-
-    /**
-     * Risks
-     * @param data
-     * @return
-     */
-    public static double getLowestRisk(Data data) {
-
-        // Define quasi-identifiers
-        data.getDefinition().setAttributeType(IO.FIELD_AGE, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_GENDER, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_DIAGNOSIS_MONTH, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
-        data.getDefinition().setAttributeType(IO.FIELD_DIAGNOSIS_YEAR, AttributeType.QUASI_IDENTIFYING_ATTRIBUTE);
+        // Analyze classes, encoded directly from the handle
+        Events.Risk event = new Events.Risk();
+        event.begin();
+        DataHandle handle = data.getHandle();
+        int records = handle.getNumRows();
+        double[] result = new double[3];
+        String[] quasiIdentifiers = Anon.getQuasiIdentifiers();
+        Engine.Table table = new Engine(quasiIdentifiers).createTable(Columns.encode(handle, quasiIdentifiers));
+        int classes = table.getNumberOfClasses();
+        if (classes > 0) {
+            int smallest = Integer.MAX_VALUE;
+            int largest = 0;
+            for (int clazz = 0; clazz < classes; clazz++) {
+                smallest = Math.min(smallest, table.getSize(clazz));
+                largest = Math.max(largest, table.getSize(clazz));
+            }
+            result[0] = 1d / (double) largest;
+            result[1] = 1d / ((double) records / (double) classes);
+            result[2] = 1d / (double) smallest;
+        }
 
-        // Analyze
-        return data.getHandle().getRiskEstimator().getSampleBasedReidentificationRisk().getLowestRisk();
+        // Done
+        event.records = records;
+        event.commit();
+        return result;
     }
 }
@@ -0,0 +1,119 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic input files, e.g. for training runs and benchmarks
+ * @author Fabian Prasser
+ */
+public class Synthetic {
+
+    /** Values of the phases */
+    private static final String[] VALUES_PHASE = new String[] { "yes", "no", IO.VALUE_NA, "unknown" };
+
+    /**
+     * Main entry point
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        // Check
+        if (args == null || args.length < 2) {
+            throw new IllegalArgumentException("You need to specify an output file and the number of records.");
+        }
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 0L;
+
+        // Write
+        write(new File(args[0]), Integer.parseInt(args[1]), seed);
+    }
+
+    /**
+     * Writes a synthetic input file with the given number of records
+     * @param file
+     * @param records
+     * @param seed
+     * @throws IOException
+     */
+    public static void write(File file, int records, long seed) throws IOException {
+
+        // Prepare
+        Random random = new Random(seed);
+        String[] age = Anon.getDomain(IO.FIELD_AGE);
+        String[] gender = Anon.getDomain(IO.FIELD_GENDER);
+        String[] month = Anon.getDomain(IO.FIELD_DIAGNOSIS_MONTH);
+        String[] year = Anon.getDomain(IO.FIELD_DIAGNOSIS_YEAR);
+        String[] status = Anon.getDomain(IO.FIELD_LAST_KNOWN_STATUS);
+        String[] intervention = Anon.getDomain(IO.FIELD_PHASE_CRITICIAL_VENTILATION);
+        String[] infection = Anon.getDomain(IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION);
+        String[] symptoms = Anon.getDomain(IO.FIELD_PHASE_RECOVERY_SYMPTOMS);
+
+        // Write
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+
+            // Header
+            writer.write(IO.FIELD_AGE + ";" + IO.FIELD_GENDER + ";" + IO.LEGACY_FIELD_DIAGNOSIS_MONTH_YEAR + ";" +
+                         IO.FIELD_PHASE_UNCOMPLICATED + ";" + IO.FIELD_PHASE_COMPLICATED + ";" + IO.FIELD_PHASE_CRITICAL + ";" +
+                         IO.FIELD_PHASE_RECOVERY + ";" + IO.FIELD_LAST_KNOWN_STATUS + ";" +
+                         IO.FIELD_PHASE_COMPLICATED_VASSOPRESSORS + ";" + IO.FIELD_PHASE_CRITICIAL_VASSOPRESSORS + ";" +
+                         IO.FIELD_PHASE_CRITICIAL_VENTILATION + ";" + IO.FIELD_PHASE_UNCOMPLICATED_SUPERINFECTION + ";" +
+                         IO.FIELD_PHASE_COMPLICATED_SUPERINFECTION + ";" + IO.FIELD_PHASE_CRITICIAL_SUPERINFECTION + ";" +
+                         IO.FIELD_PHASE_RECOVERY_SYMPTOMS + "\n");
+
+            // Records
+            for (int i = 0; i < records; i++) {
+                writer.write(pick(random, age) + ";");
+                writer.write(pick(random, gender) + ";");
+                writer.write(pick(random, month) + "_" + pick(random, year) + ";");
+                writer.write(pick(random, VALUES_PHASE) + ";");
+                writer.write(pick(random, VALUES_PHASE) + ";");
+                writer.write(pick(random, VALUES_PHASE) + ";");
+                writer.write(pick(random, VALUES_PHASE) + ";");
+                writer.write(pick(random, status) + ";");
+                writer.write(pick(random, intervention) + ";");
+                writer.write(pick(random, intervention) + ";");
+                writer.write(pick(random, intervention) + ";");
+                writer.write(pick(random, infection) + ";");
+                writer.write(pick(random, infection) + ";");
+                writer.write(pick(random, infection) + ";");
+                writer.write(pick(random, symptoms) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns a random value
+     * @param random
+     * @param values
+     * @return
+     */
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -40,6 +40,8 @@ public class Util {
     public static Data getData(DataHandle handle) {
 
         // Prepare
+        Events.Copy event = new Events.Copy();
+        event.begin();
         Iterator<String[]> iter = handle.iterator();
         List<String[]> rows = new ArrayList<String[]>();
         rows.add(iter.next());
@@ -55,6 +57,8 @@ public class Util {
         }
         
         // Done
+        event.records = rows.size() - 1;
+        event.commit();
         return Data.create(rows);
     }
     
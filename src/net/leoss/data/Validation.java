@@ -0,0 +1,171 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Validates converted values against the domains of the transformation rules while
+ * the input is loaded. Violations are collected for all records, so that all problems
+ * of an extract are reported at once, before any anonymization is performed. As chunks
+ * are converted concurrently, violations are recorded for the converted rows, and row
+ * numbers are resolved once all chunks have been merged.
+ * @author Fabian Prasser
+ */
+public class Validation {
+
+    /**
+     * A value violating a domain
+     * @author Fabian Prasser
+     */
+    private static class Violation {
+
+        /** Field */
+        private final String        field;
+        /** Raw value */
+        private final String        raw;
+        /** Converted value */
+        private final String        value;
+        /** Number of records */
+        private int                 count = 0;
+        /** First rows */
+        private final List<Integer> rows  = new ArrayList<>();
+
+        /**
+         * Creates a new instance
+         * @param field
+         * @param raw
+         * @param value
+         */
+        private Violation(String field, String raw, String value) {
+            this.field = field;
+            this.raw = raw;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(field).append(": \"").append(raw).append("\"");
+            if (!raw.equals(value)) {
+                builder.append(" (converted to \"").append(value).append("\")");
+            }
+            builder.append(" in ").append(count).append(count == 1 ? " record" : " records").append(rows.size() == 1 ? ", row " : ", rows ");
+            for (int i = 0; i < rows.size(); i++) {
+                builder.append(i == 0 ? "" : ", ").append(rows.get(i));
+            }
+            if (count > rows.size()) {
+                builder.append(", ...");
+            }
+            return builder.toString();
+        }
+    }
+
+    /** Number of rows reported per violation */
+    private static final int MAX_ROWS = 10;
+
+    /** Domains of the fields, null for fields without transformation rules */
+    private final Map<String, Set<String>>     domains    = new LinkedHashMap<>();
+    /** Violations by field and raw value */
+    private final Map<String, Violation>       violations = new HashMap<>();
+    /** Violations of each row */
+    private final Map<Object, List<Violation>> rows       = new IdentityHashMap<>();
+
+    /**
+     * Creates a new instance
+     * @param fields
+     */
+    public Validation(String... fields) {
+        for (String field : fields) {
+            String[] domain = Anon.getDomain(field);
+            domains.put(field, domain.length == 0 ? null : new HashSet<>(List.of(domain)));
+        }
+    }
+
+    /**
+     * Throws an exception describing all violations, if any. Rows are numbered in the
+     * order of the given list, starting with one.
+     * @param rows Converted rows
+     * @throws IOException
+     */
+    public void check(List<?> rows) throws IOException {
+
+        // Nothing to do
+        if (violations.isEmpty()) {
+            return;
+        }
+
+        // Resolve rows
+        for (int row = 0; row < rows.size() && !this.rows.isEmpty(); row++) {
+            List<Violation> violations = this.rows.remove(rows.get(row));
+            if (violations != null) {
+                for (Violation violation : violations) {
+                    if (violation.rows.size() < MAX_ROWS) {
+                        violation.rows.add(row + 1);
+                    }
+                }
+            }
+        }
+
+        // Report ordered by field and first row
+        List<String> fields = new ArrayList<>(domains.keySet());
+        List<Violation> sorted = new ArrayList<>(violations.values());
+        sorted.sort(Comparator.comparingInt((Violation violation) -> fields.indexOf(violation.field))
+                              .thenComparingInt(violation -> violation.rows.isEmpty() ? 0 : violation.rows.get(0)));
+        int records = 0;
+        StringBuilder builder = new StringBuilder();
+        for (Violation violation : sorted) {
+            records += violation.count;
+            builder.append("\n - ").append(violation);
+        }
+        throw new IOException(violations.size() + " values not covered by the transformation rules in " + records + " cells:" + builder.toString());
+    }
+
+    /**
+     * Returns whether a value is valid for a field
+     * @param field
+     * @param value
+     * @return
+     */
+    public boolean isValid(String field, String value) {
+        Set<String> domain = domains.get(field);
+        return domain == null || domain.contains(value);
+    }
+
+    /**
+     * Records a violation
+     * @param row Converted row
+     * @param field
+     * @param raw
+     * @param value
+     */
+    public synchronized void add(Object row, String field, String raw, String value) {
+        Violation violation = violations.computeIfAbsent(field + '\u0000' + raw, key -> new Violation(field, raw, value));
+        violation.count++;
+        rows.computeIfAbsent(row, key -> new ArrayList<>()).add(violation);
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.exceptions.RollbackRequiredException;
+
+/**
+ * Produces several variants of the Public Use File in one run. The variants form a
+ * DAG: loading and generalization are shared by all variants, filters are applied to the
+ * generalized records, the first stage is executed once per filter and shared by all
+ * variants with this filter, and the second stage, with the parameters of each variant,
+ * is executed concurrently for all variants. Records of shared stages are reused by
+ * reference. Outputs are published once all variants have been produced. Variants are
+ * defined in a properties file:
+ *
+ * <pre>
+ * variants = full, small
+ * full.output = puf.csv
+ * small.output = puf-small.csv
+ * small.k = 15
+ * small.t = 0.4
+ * small.fields = Last.known.patient.status, Symptoms.in.recovery.phase
+ * small.filter = Year.first.diagnosis=2021
+ * small.first-stage = true
+ * </pre>
+ *
+ * Outputs are relative to the properties file. Sensitive attributes not listed in "fields"
+ * are removed from the variant, "filter" restricts the records of the variant before its
+ * first stage.
+ * @author Fabian Prasser
+ */
+public class Variants {
+
+    /**
+     * A variant
+     * @param name
+     * @param output
+     * @param k
+     * @param t
+     * @param fields Sensitive attributes released
+     * @param filter Field and value records must match, may be null
+     * @param firstStage Whether the first stage is applied
+     */
+    public static record Variant(String name, File output, int k, double t, String[] fields, String[] filter, boolean firstStage) {}
+
+    /**
+     * Loads the variants
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static List<Variant> load(File file) throws IOException {
+
+        // Load
+        Properties properties = new Properties();
+        try (InputStream input = new FileInputStream(file)) {
+            properties.load(input);
+        }
+
+        // Parse
+        List<Variant> variants = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        Set<File> outputs = new HashSet<>();
+        for (String name : split(properties.getProperty("variants", ""))) {
+            if (!names.add(name)) {
+                throw new IllegalArgumentException("Variant specified more than once: " + name);
+            }
+            String output = properties.getProperty(name + ".output");
+            if (output == null) {
+                throw new IllegalArgumentException("No output specified for variant: " + name);
+            }
+            String[] fields = properties.containsKey(name + ".fields") ? split(properties.getProperty(name + ".fields")) : Anon.getSensitiveAttributes();
+            for (String field : fields) {
+                if (!Arrays.asList(Anon.getSensitiveAttributes()).contains(field)) {
+                    throw new IllegalArgumentException("Unknown sensitive attribute in variant " + name + ": " + field);
+                }
+            }
+            String[] filter = null;
+            if (properties.containsKey(name + ".filter")) {
+                filter = properties.getProperty(name + ".filter").split("=", 2);
+                if (filter.length != 2) {
+                    throw new IllegalArgumentException("Filter of variant " + name + " must be of the form field=value");
+                }
+                filter[0] = filter[0].trim();
+                filter[1] = filter[1].trim();
+            }
+            File target = new File(output);
+            if (!target.isAbsolute()) {
+                target = new File(file.getAbsoluteFile().getParentFile(), output);
+            }
+            if (!outputs.add(target.getAbsoluteFile())) {
+                throw new IllegalArgumentException("Output of variant " + name + " is used by another variant: " + output);
+            }
+            variants.add(new Variant(name,
+                                     target,
+                                     Integer.parseInt(properties.getProperty(name + ".k", "11").trim()),
+                                     Double.parseDouble(properties.getProperty(name + ".t", "0.5").trim()),
+                                     fields,
+                                     filter,
+                                     Boolean.parseBoolean(properties.getProperty(name + ".first-stage", "true").trim())));
+        }
+        if (variants.isEmpty()) {
+            throw new IllegalArgumentException("No variants specified.");
+        }
+        return variants;
+    }
+
+    /**
+     * Produces all variants. Outputs are published once all variants have been produced.
+     * @param data Input
+     * @param variants
+     * @param progress
+     * @throws IOException
+     * @throws RollbackRequiredException
+     */
+    public static void run(Data data, List<Variant> variants, Progress progress) throws IOException, RollbackRequiredException {
+
+        // Shared prefix
+        data = Anon.anonymizeGeneralize(data, progress);
+        List<String[]> generalized = getRows(data);
+
+        // Records of each filter, to which the first stage is applied, if required, before they are shared by the variants
+        Map<String, FutureTask<List<String[]>>> records = new HashMap<>();
+        for (Variant variant : variants) {
+            records.computeIfAbsent(getPhase(variant), phase -> new FutureTask<>(() -> {
+                List<String[]> rows = filter(generalized, variant.filter());
+                if (!variant.firstStage()) {
+                    return rows;
+                }
+                return getRows(Anon.anonymizeFirstStage(Data.create(rows), progress.fork(phase), phase));
+            }));
+        }
+
+        // Variants, which are all waited for before outputs are published or removed
+        List<FutureTask<Void>> runs = new ArrayList<>();
+        for (Variant variant : variants) {
+            runs.add(Pipeline.fork(() -> {
+                List<String[]> rows = Pipeline.join(records.get(getPhase(variant)));
+                List<Report> reports = variant.firstStage() ? getReports(getPhase(variant)) : new ArrayList<>();
+                run(variant, rows, reports, progress.fork(variant.name()));
+                return null;
+            }));
+        }
+        boolean success = false;
+        try {
+            Exception failure = null;
+            for (FutureTask<Void> run : runs) {
+                try {
+                    Pipeline.join(run);
+                } catch (IOException | RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                        progress.cancel();
+                    }
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+
+            // Publish
+            progress.check();
+            for (Variant variant : variants) {
+                File output = variant.output();
+                Files.move(getTemporaryReport(output).toPath(), new File(output.getAbsolutePath() + ".report").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(getTemporaryOutput(output).toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                for (Variant variant : variants) {
+                    getTemporaryOutput(variant.output()).delete();
+                    getTemporaryReport(variant.output()).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Produces a variant from the shared records, which is written to temporary files
+     * @param variant
+     * @param rows Filtered records including the header, which are not modified
+     * @param reports Reports of the stages preceding the second stage
+     * @param progress
+     * @throws IOException
+     * @throws RollbackRequiredException
+     */
+    private static void run(Variant variant, List<String[]> rows, List<Report> reports, Progress progress) throws IOException, RollbackRequiredException {
+
+        // Columns
+        String[] header = rows.get(0);
+        List<String> sensitive = Arrays.asList(Anon.getSensitiveAttributes());
+        List<String> fields = Arrays.asList(variant.fields());
+        List<Integer> columns = new ArrayList<>();
+        for (int column = 0; column < header.length; column++) {
+            if (!sensitive.contains(header[column]) || fields.contains(header[column])) {
+                columns.add(column);
+            }
+        }
+
+        // Restrict
+        List<String[]> restricted = new ArrayList<>();
+        restricted.add(project(header, columns));
+        for (int row = 1; row < rows.size(); row++) {
+            restricted.add(columns.size() == header.length ? rows.get(row) : project(rows.get(row), columns));
+        }
+
+        // Second stage
+        String phase = "Second stage (" + variant.name() + ")";
+        Data result = Anon.anonymizeSecondStage(Data.create(restricted), progress, phase, variant.k(), variant.t(), variant.fields());
+        reports.addAll(getReports(phase));
+
+        // Write to temporary files, which are published once all variants have been produced
+        File output = variant.output();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(getTemporaryReport(output)))) {
+            for (Report report : reports) {
+                writer.write(report.toString());
+                writer.write("\n");
+            }
+        }
+        IO.writeOutput(result, getTemporaryOutput(output), progress);
+    }
+
+    /**
+     * Returns the records matching a filter
+     * @param rows Records including the header
+     * @param filter Field and value, may be null
+     * @return
+     */
+    private static List<String[]> filter(List<String[]> rows, String[] filter) {
+        if (filter == null) {
+            return rows;
+        }
+        int column = Arrays.asList(rows.get(0)).indexOf(filter[0]);
+        if (column < 0) {
+            throw new IllegalArgumentException("Unknown field in filter: " + filter[0]);
+        }
+        List<String[]> result = new ArrayList<>();
+        result.add(rows.get(0));
+        for (int row = 1; row < rows.size(); row++) {
+            if (rows.get(row)[column].equals(filter[1])) {
+                result.add(rows.get(row));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the phase preceding the second stage of a variant, which is shared by all
+     * variants with the same filter and the same choice of the first stage
+     * @param variant
+     * @return
+     */
+    private static String getPhase(Variant variant) {
+        String phase = variant.firstStage() ? "First stage" : "No first stage";
+        return variant.filter() == null ? phase : phase + " (" + variant.filter()[0] + "=" + variant.filter()[1] + ")";
+    }
+
+    /**
+     * Returns the reports of a phase
+     * @param phase
+     * @return
+     */
+    private static List<Report> getReports(String phase) {
+        List<Report> result = new ArrayList<>();
+        synchronized (Report.getReports()) {
+            for (Report report : Report.getReports()) {
+                if (report.getPhase().equals(phase)) {
+                    result.add(report);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the temporary file of an output
+     * @param output
+     * @return
+     */
+    private static File getTemporaryOutput(File output) {
+        return new File(output.getAbsolutePath() + ".tmp");
+    }
+
+    /**
+     * Returns the temporary file of a report
+     * @param output
+     * @return
+     */
+    private static File getTemporaryReport(File output) {
+        return new File(output.getAbsolutePath() + ".report.tmp");
+    }
+
+    /**
+     * Returns the records of the data, including the header
+     * @param data
+     * @return
+     */
+    private static List<String[]> getRows(Data data) {
+        List<String[]> rows = new ArrayList<>();
+        Iterator<String[]> iter = data.getHandle().iterator();
+        while (iter.hasNext()) {
+            rows.add(iter.next());
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the given columns
+     * @param values
+     * @param columns
+     * @return
+     */
+    private static String[] project(String[] values, List<Integer> columns) {
+        String[] result = new String[columns.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values[columns.get(i)];
+        }
+        return result;
+    }
+
+    /**
+     * Splits a comma-separated list
+     * @param value
+     * @return
+     */
+    private static String[] split(String value) {
+        List<String> result = new ArrayList<>();
+        for (String element : value.split(",")) {
+            if (!element.trim().isEmpty()) {
+                result.add(element.trim());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.deidentifier.arx.Data;
+
+/**
+ * Checks the difference to a previous release with several rows, some of which occur
+ * more than once, against the counts of rows added and removed.
+ * @author Fabian Prasser
+ */
+public class DeltaTest {
+
+    /**
+     * Main entry point
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        // Previous release
+        File previous = File.createTempFile("previous", ".csv");
+        previous.deleteOnExit();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(previous))) {
+            writer.write("age;gender\n");
+            writer.write("20-29;female\n");
+            writer.write("20-29;female\n");
+            writer.write("30-39;male\n");
+            writer.write("40-49;male\n");
+            writer.write("50-59;female\n");
+        }
+
+        // Current release: one duplicate and one row removed, two rows added
+        List<String[]> rows = new ArrayList<>();
+        rows.add(new String[] { "age", "gender" });
+        rows.add(new String[] { "30-39", "male" });
+        rows.add(new String[] { "20-29", "female" });
+        rows.add(new String[] { "50-59", "female" });
+        rows.add(new String[] { "60-69", "male" });
+        rows.add(new String[] { "60-69", "male" });
+
+        // Check
+        Delta delta = new Delta(previous, Data.create(rows), Progress.none());
+        check("added", 2, delta.getNumberOfAddedRecords());
+        check("removed", 2, delta.getNumberOfRemovedRecords());
+        System.out.println("DeltaTest: rows added and removed counted correctly");
+    }
+
+    /**
+     * Checks a count
+     * @param name
+     * @param expected
+     * @param actual
+     */
+    private static void check(String name, int expected, int actual) {
+        if (expected != actual) {
+            throw new AssertionError("Expected " + expected + " rows " + name + ", but found " + actual);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * LEOSS Data Release
+ * Copyright (C) 2020 - LEOSS
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.leoss.data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the parallel parser splits files with quotes correctly. The file spans
+ * several chunks and contains quotes within unquoted fields, which must be taken
+ * literally, as well as quoted fields containing delimiters, escaped quotes and line
+ * breaks, which must not be split.
+ * @author Fabian Prasser
+ */
+public class ParserTest {
+
+    /** Number of records */
+    private static final int RECORDS = 200000;
+
+    /**
+     * Main entry point
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        // Write
+        File file = File.createTempFile("parser", ".csv");
+        file.deleteOnExit();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("id;first;second\n");
+            for (int i = 0; i < RECORDS; i++) {
+                String[] expected = getRecord(i);
+                if (i % 3 == 0) {
+                    writer.write(expected[0] + ";" + expected[1] + ";" + expected[2] + "\n");
+                } else {
+                    writer.write(expected[0] + ";\"" + expected[1].replace("\"", "\"\"") + "\";" + expected[2] + "\r\n");
+                }
+            }
+        }
+
+        // Parse
+        List<String[]> rows = new Parser(file, ';').parse(() -> row -> row.clone(), Progress.none());
+
+        // Check
+        if (rows.size() != RECORDS) {
+            throw new AssertionError("Expected " + RECORDS + " records, but found " + rows.size());
+        }
+        for (int i = 0; i < RECORDS; i++) {
+            if (!Arrays.equals(rows.get(i), getRecord(i))) {
+                throw new AssertionError("Record " + i + ": expected " + Arrays.toString(getRecord(i)) + ", but found " + Arrays.toString(rows.get(i)));
+            }
+        }
+        System.out.println("ParserTest: " + RECORDS + " records parsed correctly");
+    }
+
+    /**
+     * Returns the values of a record. Values of every third record are written without
+     * quotes and contain a single quote, values of other records are written with quotes.
+     * @param i
+     * @return
+     */
+    private static String[] getRecord(int i) {
+        if (i % 3 == 0) {
+            return new String[] { String.valueOf(i), "5\" tall", "y" };
+        } else {
+            return new String[] { String.valueOf(i), "a;b\n\"c\"", "z" };
+        }
+    }
+}